@@ -0,0 +1,206 @@
+package com.samsung.veles.mastodon;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.samsung.veles.mastodon.VelesManager.Compression;
+
+/**
+ * Chooses the compression of each job sent with {@link Compression#Adaptive}. Small jobs are not
+ * compressed at all. For the rest, the order-0 entropy of a sample of the pickle is estimated, and
+ * the compression ratios observed previously for the same job type are taken into account: the
+ * fast codec is used by default, the strong one is used for large jobs if it proved to be
+ * noticeably better, and the incompressible jobs are sent as is. The receiver needs no changes,
+ * since the chosen codec is written to the message header as usual.
+ */
+public class AdaptiveCompression {
+  private static final int SAMPLE_CHUNKS = 16;
+  private static final int SAMPLE_CHUNK_SIZE = 256;
+  // the weight of the latest observation in the average ratio
+  private static final double SMOOTHING = 0.2;
+  // the ratio below which the compression is not worth the CPU time
+  private static final double MIN_RATIO = 1.1;
+  // how much better the strong codec must be to be preferred
+  private static final double STRONG_GAIN = 1.2;
+  // every Nth job of each type re-evaluates the codec which is not currently chosen
+  private static final int EXPLORATION_PERIOD = 64;
+
+  private static class Stats {
+    final AtomicInteger jobs = new AtomicInteger();
+    // average ratios of the fast and strong codecs, 0 if never observed
+    volatile double fast;
+    volatile double strong;
+  }
+
+  private final ConcurrentHashMap<String, Stats> _stats = new ConcurrentHashMap<>();
+  private volatile Compression _fast = Compression.Lz4;
+  private volatile Compression _strong = Compression.Zstd;
+  private volatile int _min_size = 512;
+  private volatile int _strong_size = 64 * 1024;
+
+  public Compression getFastCodec() {
+    return _fast;
+  }
+
+  public Compression getStrongCodec() {
+    return _strong;
+  }
+
+  /**
+   * Sets the codecs to choose from. The defaults are Lz4 and Zstd, Snappy and Gzip suit the slaves
+   * which do not support them.
+   */
+  public void setCodecs(Compression fast, Compression strong) {
+    if (fast == Compression.Adaptive || strong == Compression.Adaptive) {
+      throw new IllegalArgumentException();
+    }
+    _fast = fast;
+    _strong = strong;
+    _stats.clear();
+  }
+
+  public int getMinSize() {
+    return _min_size;
+  }
+
+  /**
+   * Sets the size of the pickle below which it is never compressed. The default is 512 bytes.
+   */
+  public void setMinSize(int value) {
+    _min_size = value;
+  }
+
+  public int getStrongSize() {
+    return _strong_size;
+  }
+
+  /**
+   * Sets the size of the pickle starting from which the strong codec is considered. The default is
+   * 64 KB.
+   */
+  public void setStrongSize(int value) {
+    _strong_size = value;
+  }
+
+  /**
+   * @param type The job type, the statistics are collected separately for each one.
+   * @param codec The codec.
+   * @return The average compression ratio observed for the job type, or 0 if unknown.
+   */
+  public double getRatio(String type, Compression codec) {
+    Stats stats = _stats.get(type);
+    if (stats == null) {
+      return 0;
+    }
+    if (codec == _fast) {
+      return stats.fast;
+    }
+    if (codec == _strong) {
+      return stats.strong;
+    }
+    return 0;
+  }
+
+  /**
+   * Chooses the codec for the pickled job.
+   *
+   * @param type The job type.
+   * @param pickle The serialized job.
+   */
+  public Compression choose(String type, byte[] pickle) {
+    if (pickle.length < _min_size) {
+      return Compression.None;
+    }
+    Stats stats = _stats.get(type);
+    if (stats == null) {
+      stats = new Stats();
+      Stats existing = _stats.putIfAbsent(type, stats);
+      if (existing != null) {
+        stats = existing;
+      }
+    }
+    boolean explore = stats.jobs.getAndIncrement() % EXPLORATION_PERIOD == 0;
+    double fast = stats.fast;
+    if (fast == 0) {
+      fast = estimateRatio(pickle);
+    }
+    boolean large = pickle.length >= _strong_size;
+    if (fast < MIN_RATIO) {
+      // incompressible, but check it from time to time
+      return explore ? _fast : Compression.None;
+    }
+    if (!large) {
+      return _fast;
+    }
+    double strong = stats.strong;
+    if (strong == 0) {
+      return _strong;
+    }
+    Compression preferred = strong >= fast * STRONG_GAIN ? _strong : _fast;
+    if (explore) {
+      return preferred == _strong ? _fast : _strong;
+    }
+    return preferred;
+  }
+
+  /**
+   * Records the outcome of the compression chosen by choose().
+   *
+   * @param type The job type.
+   * @param codec The codec which was used.
+   * @param size The size of the pickle.
+   * @param compressed The size of the compressed pickle.
+   */
+  public void report(String type, Compression codec, int size, int compressed) {
+    Stats stats = _stats.get(type);
+    if (stats == null || compressed <= 0) {
+      return;
+    }
+    double ratio = (double) size / compressed;
+    if (codec == _fast) {
+      stats.fast = average(stats.fast, ratio);
+    } else if (codec == _strong) {
+      stats.strong = average(stats.strong, ratio);
+    }
+  }
+
+  private static double average(double value, double observed) {
+    return value == 0 ? observed : value + (observed - value) * SMOOTHING;
+  }
+
+  /**
+   * Estimates the compression ratio by the order-0 entropy of SAMPLE_CHUNKS chunks evenly spread
+   * over the data.
+   */
+  static double estimateRatio(byte[] data) {
+    int[] histogram = new int[256];
+    int chunk = Math.min(SAMPLE_CHUNK_SIZE, data.length / SAMPLE_CHUNKS);
+    int step = data.length / SAMPLE_CHUNKS;
+    int total = 0;
+    if (chunk == 0) {
+      for (byte b : data) {
+        histogram[b & 0xff]++;
+      }
+      total = data.length;
+    } else {
+      for (int i = 0; i < SAMPLE_CHUNKS; i++) {
+        for (int j = i * step; j < i * step + chunk; j++) {
+          histogram[data[j] & 0xff]++;
+        }
+      }
+      total = chunk * SAMPLE_CHUNKS;
+    }
+    if (total == 0) {
+      return 1;
+    }
+    double entropy = 0;
+    for (int count : histogram) {
+      if (count > 0) {
+        double p = (double) count / total;
+        entropy -= p * Math.log(p);
+      }
+    }
+    entropy /= Math.log(2);
+    return entropy > 0 ? 8 / entropy : 8;
+  }
+}
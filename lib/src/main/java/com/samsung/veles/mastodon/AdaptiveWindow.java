@@ -0,0 +1,68 @@
+package com.samsung.veles.mastodon;
+
+/**
+ * Limit of the jobs in flight to a single slave, adjusted in the AIMD fashion from the observed
+ * round trip times. While the latency stays close to the lowest one seen recently, the slave is
+ * not saturated and the limit grows by one per window of replies. When the latency grows beyond
+ * that, the jobs are queueing up on the slave, so the limit is halved, at most once per round
+ * trip. The limit thus settles near the throughput knee of the slave.
+ */
+public class AdaptiveWindow {
+  // the latency up to this times the baseline is considered normal
+  private static final double TOLERANCE = 2.0;
+  private static final double BACKOFF = 0.5;
+  // the baseline is refreshed every this number of replies, so that it follows the slave
+  private static final int BASELINE_PERIOD = 256;
+
+  private final int _min;
+  private final int _max;
+  private double _limit;
+  private long _baseline = Long.MAX_VALUE;
+  private long _period_min = Long.MAX_VALUE;
+  private int _period_replies = 0;
+  private boolean _decreased = false;
+  private long _last_decrease;
+
+  /**
+   * @param initial The initial limit.
+   * @param min The lowest limit.
+   * @param max The highest limit.
+   */
+  public AdaptiveWindow(int initial, int min, int max) {
+    if (min < 1 || max < min || initial < min || initial > max) {
+      throw new IllegalArgumentException();
+    }
+    _min = min;
+    _max = max;
+    _limit = initial;
+  }
+
+  public int getLimit() {
+    return (int) _limit;
+  }
+
+  /**
+   * Records the round trip time of a job.
+   *
+   * @param rtt The time from sending the job to receiving the reply, in nanoseconds.
+   * @param now The current System.nanoTime().
+   */
+  public void onReply(long rtt, long now) {
+    _period_min = Math.min(_period_min, rtt);
+    if (++_period_replies >= BASELINE_PERIOD) {
+      _baseline = _period_min;
+      _period_min = Long.MAX_VALUE;
+      _period_replies = 0;
+    }
+    _baseline = Math.min(_baseline, rtt);
+    if (rtt > _baseline * TOLERANCE) {
+      if (!_decreased || now - _last_decrease > rtt) {
+        _limit = Math.max(_min, _limit * BACKOFF);
+        _decreased = true;
+        _last_decrease = now;
+      }
+    } else {
+      _limit = Math.min(_max, _limit + 1 / _limit);
+    }
+  }
+}
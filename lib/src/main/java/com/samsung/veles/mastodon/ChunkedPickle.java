@@ -0,0 +1,154 @@
+package com.samsung.veles.mastodon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.samsung.veles.mastodon.VelesManager.Compression;
+
+/**
+ * Large pickle split into independent chunks which are compressed and decompressed in parallel.
+ * On the wire, the chunks follow the message header as [count][size][compressed size]...[data]...,
+ * the numbers are 32-bit little-endian. Every chunk is a complete stream of the message codec.
+ */
+public class ChunkedPickle {
+  private final int[] _sizes;
+  private final byte[][] _chunks;
+
+  private ChunkedPickle(int[] sizes, byte[][] chunks) {
+    _sizes = sizes;
+    _chunks = chunks;
+  }
+
+  public int getChunksCount() {
+    return _chunks.length;
+  }
+
+  /**
+   * Compresses the pickle in chunks of the specified size in parallel.
+   *
+   * @param pickle The serialized job.
+   * @param compression The codec.
+   * @param dictionary The dictionary for ZstdDictionary compression.
+   * @param zstdLevel The level of Zstd compression.
+   * @param chunkSize The size of each chunk, except the last one.
+   * @param executor Runs the compression.
+   */
+  public static ChunkedPickle compress(final byte[] pickle, final Compression compression,
+      final ZstdDictionary dictionary, final int zstdLevel, int chunkSize,
+      ExecutorService executor)
+      throws IOException {
+    int count = (pickle.length + chunkSize - 1) / chunkSize;
+    int[] sizes = new int[count];
+    List<Callable<byte[]>> tasks = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final int offset = i * chunkSize;
+      final int size = Math.min(chunkSize, pickle.length - offset);
+      sizes[i] = size;
+      tasks.add(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          ByteArrayOutputStream result = new ByteArrayOutputStream(size / 2);
+          OutputStream out = VelesManager.compress(result, compression, dictionary, zstdLevel);
+          out.write(pickle, offset, size);
+          out.close();
+          return result.toByteArray();
+        }
+      });
+    }
+    return new ChunkedPickle(sizes, getAll(executor, tasks).toArray(new byte[count][]));
+  }
+
+  /**
+   * Writes the chunks table and the compressed chunks.
+   */
+  public void writeTo(OutputStream output) throws IOException {
+    VelesManager.writeInt(output, _chunks.length);
+    for (int i = 0; i < _chunks.length; i++) {
+      VelesManager.writeInt(output, _sizes[i]);
+      VelesManager.writeInt(output, _chunks[i].length);
+    }
+    for (byte[] chunk : _chunks) {
+      output.write(chunk);
+    }
+  }
+
+  /**
+   * Reads the chunks written by writeTo() and decompresses them in parallel.
+   *
+   * @param input The message stream, positioned at the chunks table.
+   * @param compression The codec.
+   * @param dictionary The dictionary for ZstdDictionary compression.
+   * @param executor Runs the decompression.
+   * @return The stream of the whole pickle. Closing it closes the input.
+   */
+  public static InputStream read(final InputStream input, final Compression compression,
+      final ZstdDictionary dictionary, ExecutorService executor) throws IOException {
+    int count = VelesManager.readInt(input);
+    final int[] sizes = new int[count];
+    final byte[][] chunks = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      sizes[i] = VelesManager.readInt(input);
+      chunks[i] = new byte[VelesManager.readInt(input)];
+    }
+    for (byte[] chunk : chunks) {
+      VelesManager.readFully(input, chunk);
+    }
+    List<Callable<byte[]>> tasks = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      tasks.add(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          byte[] chunk = new byte[sizes[index]];
+          InputStream in = VelesManager.decompress(new ByteArrayInputStream(chunks[index]),
+              compression, dictionary);
+          VelesManager.readFully(in, chunk);
+          in.close();
+          return chunk;
+        }
+      });
+    }
+    List<InputStream> streams = new ArrayList<>(count);
+    for (byte[] chunk : getAll(executor, tasks)) {
+      streams.add(new ByteArrayInputStream(chunk));
+    }
+    return new FilterInputStream(new SequenceInputStream(Collections.enumeration(streams))) {
+      @Override
+      public void close() throws IOException {
+        input.close();
+      }
+    };
+  }
+
+  private static List<byte[]> getAll(ExecutorService executor, List<Callable<byte[]>> tasks)
+      throws IOException {
+    List<byte[]> results = new ArrayList<>(tasks.size());
+    try {
+      for (Future<byte[]> future : executor.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    return results;
+  }
+}
@@ -0,0 +1,116 @@
+package com.samsung.veles.mastodon;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Maps the routing keys to the endpoints so that the same key always lands on the same slave, and
+ * when a slave is added or removed, only the keys of that slave move. Each endpoint is placed on
+ * the ring many times (virtual nodes), so the keys are spread evenly. The ring is immutable and is
+ * rebuilt whenever the topology changes.
+ */
+public class ConsistentHashRing {
+  public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+  // the positions of the virtual nodes, sorted
+  private final long[] _hashes;
+  // the endpoint of each virtual node
+  private final ZMQEndpoint[] _owners;
+
+  public ConsistentHashRing(Collection<ZMQEndpoint> endpoints) {
+    this(endpoints, DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * @param endpoints The endpoints to distribute the keys among.
+   * @param virtualNodes The number of points of each endpoint on the ring.
+   */
+  public ConsistentHashRing(Collection<ZMQEndpoint> endpoints, int virtualNodes) {
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException();
+    }
+    int size = endpoints.size() * virtualNodes;
+    long[] points = new long[size];
+    ZMQEndpoint[] owners = new ZMQEndpoint[size];
+    int n = 0;
+    for (ZMQEndpoint endpoint : endpoints) {
+      for (int i = 0; i < virtualNodes; i++) {
+        points[n] = hash(endpoint.uri + "#" + i);
+        owners[n++] = endpoint;
+      }
+    }
+    // sort the points together with their owners
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    final long[] unsorted = points;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(unsorted[a], unsorted[b]);
+      }
+    });
+    _hashes = new long[size];
+    _owners = new ZMQEndpoint[size];
+    for (int i = 0; i < size; i++) {
+      _hashes[i] = points[order[i]];
+      _owners[i] = owners[order[i]];
+    }
+  }
+
+  public boolean isEmpty() {
+    return _hashes.length == 0;
+  }
+
+  /**
+   * @return The endpoint the key belongs to, or null if the ring is empty.
+   */
+  public ZMQEndpoint get(String key) {
+    if (isEmpty()) {
+      return null;
+    }
+    return _owners[find(hash(key))];
+  }
+
+  /**
+   * @return The number of virtual nodes.
+   */
+  int size() {
+    return _hashes.length;
+  }
+
+  /**
+   * @return The index of the first virtual node at or after the hash, clockwise.
+   */
+  int find(long hash) {
+    int i = Arrays.binarySearch(_hashes, hash);
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return i < _hashes.length ? i : 0;
+  }
+
+  ZMQEndpoint owner(int index) {
+    return _owners[index];
+  }
+
+  /**
+   * 64-bit FNV-1a of the string followed by the MurmurHash3 finalizer, which spreads the similar
+   * keys over the whole ring.
+   */
+  static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,113 @@
+package com.samsung.veles.mastodon;
+
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+
+/**
+ * Collects the pickles of the jobs submitted with
+ * {@link VelesManager.Compression#ZstdDictionary} and trains a Zstd dictionary on them. Until the
+ * dictionary is ready, such jobs are compressed with plain Zstd. Small jobs with the same
+ * structure every time compress several times better with the dictionary.
+ */
+public class DictionaryTrainer {
+  private static Logger log = Logger.getLogger(DictionaryTrainer.class.getName());
+  public static final int DEFAULT_DICTIONARY_SIZE = 16 * 1024;
+  // zstd recommends about a hundred times the dictionary size of samples
+  public static final int DEFAULT_SAMPLES_SIZE = 100 * DEFAULT_DICTIONARY_SIZE;
+  // larger jobs do not benefit from the dictionary and spoil the samples
+  private static final int MAX_SAMPLE_SIZE = 64 * 1024;
+
+  private final Executor _executor;
+  private final int _dictionary_size;
+  private final int _samples_size;
+  private ZstdDictTrainer _trainer;
+  private volatile boolean _sampling = true;
+  private volatile ZstdDictionary _dictionary;
+  private volatile int _level = Zstd.defaultCompressionLevel();
+
+  /**
+   * @param dictionarySize The size of the dictionary to train.
+   * @param samplesSize The total size of the samples to train on.
+   * @param executor Runs the training.
+   */
+  public DictionaryTrainer(int dictionarySize, int samplesSize, Executor executor) {
+    _executor = executor;
+    _dictionary_size = dictionarySize;
+    _samples_size = samplesSize;
+    _trainer = new ZstdDictTrainer(samplesSize, dictionarySize);
+  }
+
+  /**
+   * @return The trained dictionary or null if it is not ready yet.
+   */
+  public ZstdDictionary getDictionary() {
+    return _dictionary;
+  }
+
+  public int getLevel() {
+    return _level;
+  }
+
+  /**
+   * Sets the Zstd compression level of the dictionaries trained afterwards.
+   */
+  public void setLevel(int value) {
+    _level = value;
+  }
+
+  /**
+   * Uses the specified dictionary, e.g. one trained beforehand, and stops sampling.
+   */
+  public synchronized void setDictionary(ZstdDictionary dictionary) {
+    _sampling = false;
+    _dictionary = ZstdDictionary.register(dictionary);
+  }
+
+  /**
+   * Discards the samples and starts collecting new ones. The current dictionary is used until the
+   * new one is trained.
+   */
+  public synchronized void retrain() {
+    _trainer = new ZstdDictTrainer(_samples_size, _dictionary_size);
+    _sampling = true;
+  }
+
+  /**
+   * Adds the pickle to the samples. Once enough samples are collected, the training is started.
+   */
+  public void sample(byte[] pickle) {
+    if (!_sampling || pickle.length > MAX_SAMPLE_SIZE) {
+      return;
+    }
+    final ZstdDictTrainer trainer;
+    synchronized (this) {
+      if (!_sampling || _trainer.addSample(pickle)) {
+        return;
+      }
+      _sampling = false;
+      trainer = _trainer;
+    }
+    _executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        train(trainer);
+      }
+    });
+  }
+
+  private void train(ZstdDictTrainer trainer) {
+    try {
+      ZstdDictionary dictionary =
+          new ZstdDictionary(trainer.trainSamples(), _level);
+      _dictionary = ZstdDictionary.register(dictionary);
+      log.info(String.format("Trained Zstd dictionary %08x", dictionary.id));
+    } catch (ZstdException e) {
+      log.warn("Failed to train Zstd dictionary, the plain Zstd is used", e);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.samsung.veles.mastodon;
+
+/**
+ * Error rate and latency of a single slave endpoint, together with the circuit breaker on top of
+ * them. While the circuit is closed, the endpoint receives jobs as usual. When the failures
+ * dominate, or the slave stops replying at all, the circuit opens and the endpoint gets no jobs.
+ * After the cooldown it becomes half-open and lets a single probe job through: the reply closes
+ * the circuit again, the failure reopens it.
+ *
+ * The statistics are updated only from the I/O thread, the state can be read from any thread.
+ */
+public class EndpointHealth {
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  // the weight of the latest outcome in the moving averages
+  private static final double ALPHA = 0.1;
+  // the failure rate which opens the circuit
+  private static final double FAILURE_THRESHOLD = 0.5;
+  // the rate is not trusted until this number of outcomes is recorded
+  private static final int MIN_OUTCOMES = 5;
+
+  private volatile State _state = State.CLOSED;
+  private volatile double _failure_rate = 0;
+  private volatile long _latency = -1;
+  private int _outcomes = 0;
+  private long _opened;
+  // whether the probe job of the half-open circuit is in flight
+  private boolean _probing = false;
+
+  public State getState() {
+    return _state;
+  }
+
+  /**
+   * @return The moving average of the share of failed jobs, from 0 to 1.
+   */
+  public double getFailureRate() {
+    return _failure_rate;
+  }
+
+  /**
+   * @return The moving average of the round trip time in nanoseconds, or -1 if unknown.
+   */
+  public long getLatency() {
+    return _latency;
+  }
+
+  /**
+   * @param now The current System.nanoTime().
+   * @param cooldown How long the circuit stays open before the probe, in nanoseconds.
+   * @return Whether the endpoint may receive a job now.
+   */
+  public boolean allows(long now, long cooldown) {
+    switch (_state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (now - _opened < cooldown) {
+          return false;
+        }
+        _state = State.HALF_OPEN;
+        _probing = false;
+        return true;
+      default:
+        return !_probing;
+    }
+  }
+
+  /**
+   * Records that a job was sent to the endpoint.
+   */
+  public void onSend() {
+    if (_state == State.HALF_OPEN) {
+      _probing = true;
+    }
+  }
+
+  /**
+   * Records the reply.
+   *
+   * @param rtt The time from sending the job to receiving the reply, in nanoseconds.
+   */
+  public void onSuccess(long rtt) {
+    _latency = _latency < 0 ? rtt : (long) (_latency + ALPHA * (rtt - _latency));
+    _failure_rate *= 1 - ALPHA;
+    _outcomes++;
+    if (_state != State.CLOSED) {
+      _state = State.CLOSED;
+      _failure_rate = 0;
+      _outcomes = 0;
+    }
+  }
+
+  /**
+   * Records the reply which came too late: the latency is updated, but the job counts as failed.
+   *
+   * @param rtt The time from sending the job to receiving the reply, in nanoseconds.
+   * @param now The current System.nanoTime().
+   */
+  public void onSlowReply(long rtt, long now) {
+    _latency = _latency < 0 ? rtt : (long) (_latency + ALPHA * (rtt - _latency));
+    onFailure(now);
+  }
+
+  /**
+   * Records the job which failed because of the endpoint.
+   *
+   * @param now The current System.nanoTime().
+   */
+  public void onFailure(long now) {
+    _failure_rate += ALPHA * (1 - _failure_rate);
+    _outcomes++;
+    if (_state == State.HALF_OPEN
+        || (_outcomes >= MIN_OUTCOMES && _failure_rate >= FAILURE_THRESHOLD)) {
+      trip(now);
+    }
+  }
+
+  /**
+   * Opens the circuit at once, e.g. because the slave stopped replying.
+   *
+   * @param now The current System.nanoTime().
+   */
+  public void trip(long now) {
+    _state = State.OPEN;
+    _opened = now;
+    _probing = false;
+  }
+}
@@ -0,0 +1,66 @@
+package com.samsung.veles.mastodon;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Counts the jobs of {@link VelesManager} which are not answered yet and makes the submitting
+ * threads wait while there are too many of them.
+ */
+class InFlightLimiter {
+  private int _limit = 0;
+  private int _in_flight = 0;
+
+  /**
+   * @return The maximal number of jobs in flight, 0 means unlimited.
+   */
+  public synchronized int getLimit() {
+    return _limit;
+  }
+
+  public synchronized void setLimit(int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    _limit = value;
+    notifyAll();
+  }
+
+  public synchronized int getInFlight() {
+    return _in_flight;
+  }
+
+  /**
+   * Waits until the jobs fit into the limit and counts them.
+   *
+   * @param jobs The number of jobs being submitted.
+   * @param timeout The time to wait in milliseconds, negative means forever.
+   * @throws TooManyJobsException No room was freed in time.
+   */
+  public synchronized void acquire(int jobs, long timeout) throws IOException {
+    if (_limit > 0 && jobs > _limit) {
+      throw new TooManyJobsException(String.format(
+          "%d jobs exceed the limit of %d jobs in flight", jobs, _limit));
+    }
+    long deadline = System.currentTimeMillis() + timeout;
+    while (_limit > 0 && _in_flight + jobs > _limit) {
+      long remaining = timeout < 0 ? 0 : deadline - System.currentTimeMillis();
+      if (timeout >= 0 && remaining <= 0) {
+        throw new TooManyJobsException(String.format("%d jobs are already in flight",
+            _in_flight));
+      }
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    _in_flight += jobs;
+  }
+
+  public synchronized void release(int jobs) {
+    _in_flight -= jobs;
+    notifyAll();
+  }
+}
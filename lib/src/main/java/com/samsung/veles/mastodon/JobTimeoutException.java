@@ -0,0 +1,16 @@
+package com.samsung.veles.mastodon;
+
+import java.io.IOException;
+
+/**
+ * The result of the job was not received before the deadline, see
+ * {@link VelesManager#yield(String, long, java.util.concurrent.TimeUnit)}.
+ */
+public class JobTimeoutException extends IOException {
+
+  private static final long serialVersionUID = 2716540927513260931L;
+
+  public JobTimeoutException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,58 @@
+package com.samsung.veles.mastodon;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile of the recent round trip times. The last WINDOW samples are kept in a ring
+ * and the quantile is recomputed from them every UPDATE_PERIOD samples. It is not thread safe.
+ */
+public class LatencyQuantile {
+  private static final int WINDOW = 1024;
+  private static final int UPDATE_PERIOD = 64;
+  // the estimate is not trusted before this number of samples
+  private static final int MIN_SAMPLES = 64;
+
+  private final double _quantile;
+  private final long[] _samples = new long[WINDOW];
+  private final long[] _sorted = new long[WINDOW];
+  private int _count = 0;
+  private int _next = 0;
+  private long _value = -1;
+
+  /**
+   * @param quantile The quantile to estimate, e.g. 0.95.
+   */
+  public LatencyQuantile(double quantile) {
+    if (quantile <= 0 || quantile >= 1) {
+      throw new IllegalArgumentException();
+    }
+    _quantile = quantile;
+  }
+
+  public double getQuantile() {
+    return _quantile;
+  }
+
+  /**
+   * @param rtt The round trip time in nanoseconds.
+   */
+  public void record(long rtt) {
+    _samples[_next] = rtt;
+    _next = (_next + 1) % WINDOW;
+    if (_count < WINDOW) {
+      _count++;
+    }
+    if (_count >= MIN_SAMPLES && _next % UPDATE_PERIOD == 0) {
+      System.arraycopy(_samples, 0, _sorted, 0, _count);
+      Arrays.sort(_sorted, 0, _count);
+      _value = _sorted[Math.min(_count - 1, (int) (_count * _quantile))];
+    }
+  }
+
+  /**
+   * @return The estimated quantile in nanoseconds, or -1 if there are not enough samples yet.
+   */
+  public long get() {
+    return _value;
+  }
+}
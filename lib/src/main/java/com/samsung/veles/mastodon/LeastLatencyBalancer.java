@@ -0,0 +1,46 @@
+package com.samsung.veles.mastodon;
+
+import java.util.List;
+
+/**
+ * Sends the job to the connection which is expected to answer first: the one with the smallest
+ * product of the unanswered jobs and the average round trip time measured from the replies. The
+ * connections without measurements are assumed to have the average latency of the measured ones,
+ * so they get sampled without taking all the load. Ties are broken in the round robin fashion.
+ */
+public class LeastLatencyBalancer implements LoadBalancer {
+  private int _start = 0;
+
+  @Override
+  public ZMQConnection choose(List<ZMQConnection> connections) {
+    int size = connections.size();
+    _start = (_start + 1) % size;
+    double total = 0;
+    int measured = 0;
+    for (int i = 0; i < size; i++) {
+      long latency = connections.get(i).getHealth().getLatency();
+      if (latency >= 0) {
+        total += latency;
+        measured++;
+      }
+    }
+    // any positive value works when nothing is measured: the cost follows the unanswered jobs
+    double prior = measured > 0 ? total / measured : 1;
+    ZMQConnection best = null;
+    double bestCost = 0;
+    for (int i = 0; i < size; i++) {
+      ZMQConnection connection = connections.get((_start + i) % size);
+      double cost = cost(connection, prior);
+      if (best == null || cost < bestCost) {
+        best = connection;
+        bestCost = cost;
+      }
+    }
+    return best;
+  }
+
+  private static double cost(ZMQConnection connection, double prior) {
+    long latency = connection.getHealth().getLatency();
+    return (connection.getOutstanding() + 1) * (latency >= 0 ? latency : prior);
+  }
+}
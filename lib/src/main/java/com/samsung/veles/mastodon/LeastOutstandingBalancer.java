@@ -0,0 +1,25 @@
+package com.samsung.veles.mastodon;
+
+import java.util.List;
+
+/**
+ * Sends the job to the connection with the smallest number of unanswered jobs, so that slow
+ * slaves automatically receive less work. Ties are broken in the round robin fashion.
+ */
+public class LeastOutstandingBalancer implements LoadBalancer {
+  private int _start = 0;
+
+  @Override
+  public ZMQConnection choose(List<ZMQConnection> connections) {
+    int size = connections.size();
+    _start = (_start + 1) % size;
+    ZMQConnection best = null;
+    for (int i = 0; i < size; i++) {
+      ZMQConnection connection = connections.get((_start + i) % size);
+      if (best == null || connection.getOutstanding() < best.getOutstanding()) {
+        best = connection;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,25 @@
+package com.samsung.veles.mastodon;
+
+import java.util.List;
+
+/**
+ * Strategy which distributes the submitted jobs among the open connections to Veles slaves. It is
+ * invoked only from the I/O thread, so the implementations need not be thread safe.
+ */
+public interface LoadBalancer {
+  /**
+   * Selects the connection to send the next job to.
+   *
+   * @param connections The non-empty list of connections eligible for new jobs.
+   * @return One of the connections.
+   */
+  public ZMQConnection choose(List<ZMQConnection> connections);
+
+  /**
+   * Called when the set of slaves changes, so that the state of the removed ones can be dropped.
+   *
+   * @param endpoints The endpoints of all the slaves.
+   */
+  public default void setEndpoints(List<ZMQEndpoint> endpoints) {
+  }
+}
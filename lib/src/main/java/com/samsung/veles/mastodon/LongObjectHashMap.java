@@ -0,0 +1,193 @@
+package com.samsung.veles.mastodon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hash map with primitive long keys and open addressing (linear probing), so that neither the
+ * keys are boxed nor the entries are allocated. It is not thread safe.
+ */
+public class LongObjectHashMap<V> {
+  private static final int DEFAULT_CAPACITY = 64;
+  private static final float LOAD_FACTOR = 0.5f;
+  // marks the free slots; the entry with this key is stored separately
+  private static final long FREE = 0;
+
+  private long[] _keys;
+  private Object[] _values;
+  private int _mask;
+  private int _size = 0;
+  private boolean _has_free_key = false;
+  private Object _free_key_value;
+
+  public LongObjectHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity The expected number of entries.
+   */
+  public LongObjectHashMap(int capacity) {
+    int slots = Integer.highestOneBit(Math.max((int) (capacity / LOAD_FACTOR), 2) - 1) << 1;
+    _keys = new long[slots];
+    _values = new Object[slots];
+    _mask = slots - 1;
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  public boolean isEmpty() {
+    return _size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    if (key == FREE) {
+      return _has_free_key ? (V) _free_key_value : null;
+    }
+    for (int i = slot(key);; i = (i + 1) & _mask) {
+      if (_keys[i] == key) {
+        return (V) _values[i];
+      }
+      if (_keys[i] == FREE) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * @return The previous value associated with the key, or null.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (key == FREE) {
+      V previous = (V) _free_key_value;
+      if (!_has_free_key) {
+        _has_free_key = true;
+        _size++;
+      }
+      _free_key_value = value;
+      return previous;
+    }
+    int i = slot(key);
+    for (; _keys[i] != FREE; i = (i + 1) & _mask) {
+      if (_keys[i] == key) {
+        V previous = (V) _values[i];
+        _values[i] = value;
+        return previous;
+      }
+    }
+    _keys[i] = key;
+    _values[i] = value;
+    if (++_size > _keys.length * LOAD_FACTOR) {
+      rehash(_keys.length * 2);
+    }
+    return null;
+  }
+
+  /**
+   * @return The removed value, or null if the key was absent.
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    if (key == FREE) {
+      if (!_has_free_key) {
+        return null;
+      }
+      V previous = (V) _free_key_value;
+      _has_free_key = false;
+      _free_key_value = null;
+      _size--;
+      return previous;
+    }
+    int i = slot(key);
+    for (; _keys[i] != key; i = (i + 1) & _mask) {
+      if (_keys[i] == FREE) {
+        return null;
+      }
+    }
+    V previous = (V) _values[i];
+    _size--;
+    // shift the following entries of the cluster back, so that no tombstones are needed
+    for (int j = (i + 1) & _mask; _keys[j] != FREE; j = (j + 1) & _mask) {
+      int home = slot(_keys[j]);
+      if (((j - home) & _mask) >= ((j - i) & _mask)) {
+        _keys[i] = _keys[j];
+        _values[i] = _values[j];
+        i = j;
+      }
+    }
+    _keys[i] = FREE;
+    _values[i] = null;
+    return previous;
+  }
+
+  /**
+   * @return The copy of all the keys, so that the map may be modified while iterating over them.
+   */
+  public long[] keys() {
+    long[] keys = new long[_size];
+    int n = 0;
+    if (_has_free_key) {
+      keys[n++] = FREE;
+    }
+    for (int i = 0; i < _keys.length; i++) {
+      if (_keys[i] != FREE) {
+        keys[n++] = _keys[i];
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * @return The copy of all the values.
+   */
+  @SuppressWarnings("unchecked")
+  public List<V> values() {
+    List<V> values = new ArrayList<>(_size);
+    if (_has_free_key) {
+      values.add((V) _free_key_value);
+    }
+    for (int i = 0; i < _keys.length; i++) {
+      if (_keys[i] != FREE) {
+        values.add((V) _values[i]);
+      }
+    }
+    return values;
+  }
+
+  public void clear() {
+    Arrays.fill(_keys, FREE);
+    Arrays.fill(_values, null);
+    _has_free_key = false;
+    _free_key_value = null;
+    _size = 0;
+  }
+
+  private int slot(long key) {
+    // the ids are sequential, so the bits are mixed to spread the neighbours
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & _mask;
+  }
+
+  private void rehash(int slots) {
+    long[] keys = _keys;
+    Object[] values = _values;
+    _keys = new long[slots];
+    _values = new Object[slots];
+    _mask = slots - 1;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != FREE) {
+        int j = slot(keys[i]);
+        while (_keys[j] != FREE) {
+          j = (j + 1) & _mask;
+        }
+        _keys[j] = keys[i];
+        _values[j] = values[i];
+      }
+    }
+  }
+}
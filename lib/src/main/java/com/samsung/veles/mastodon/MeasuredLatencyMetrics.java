@@ -0,0 +1,174 @@
+package com.samsung.veles.mastodon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Ranks the endpoints by the measured round trip time instead of the host names, so that a fast
+ * remote slave may win over a loaded local one. The latency of each endpoint is the moving average
+ * of the TCP connect probes started in the background when the distance is queried, so that the
+ * refresh does not wait for them. The replies to the jobs include the computation time, which is
+ * not comparable with the probes, so they are not mixed in; {@link LeastLatencyBalancer} uses
+ * them instead. The endpoints which were never measured, e.g. ipc ones, are ranked by the
+ * fallback metrics.
+ */
+public class MeasuredLatencyMetrics implements EndpointMetrics {
+  private static Logger log = Logger.getLogger(MeasuredLatencyMetrics.class.getName());
+  // the weight of the latest sample in the moving average
+  private static final double ALPHA = 0.3;
+  public static final long DEFAULT_SCALE = TimeUnit.MILLISECONDS.toNanos(1);
+  public static final int DEFAULT_PROBE_TIMEOUT = 200;
+
+  private static final ExecutorService PROBES = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "veles-mastodon-probe");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final EndpointMetrics _fallback;
+  private final long _scale;
+  private final ConcurrentHashMap<ZMQEndpoint, Double> _latencies = new ConcurrentHashMap<>();
+  private volatile int _probe_timeout = DEFAULT_PROBE_TIMEOUT;
+  // the endpoints being probed in the background
+  private final Set<ZMQEndpoint> _probing = ConcurrentHashMap.newKeySet();
+
+  public MeasuredLatencyMetrics() {
+    this(new SameHostMetrics(), DEFAULT_SCALE);
+  }
+
+  /**
+   * @param fallback Ranks the endpoints without measurements and rejects the unacceptable ones.
+   * @param scale The latency in nanoseconds which maps to the distance of 0.5. The distance grows
+   *        towards 1 with the latency, so the measured endpoints are always acceptable.
+   */
+  public MeasuredLatencyMetrics(EndpointMetrics fallback, long scale) {
+    if (fallback == null || scale <= 0) {
+      throw new IllegalArgumentException();
+    }
+    _fallback = fallback;
+    _scale = scale;
+  }
+
+  public int getProbeTimeout() {
+    return _probe_timeout;
+  }
+
+  /**
+   * Sets how long a probe waits for the connection in milliseconds. 0 disables the probes.
+   */
+  public void setProbeTimeout(int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    _probe_timeout = value;
+  }
+
+  /**
+   * Adds the network latency sample of the endpoint, comparable with the probes. Can be called
+   * from any thread.
+   *
+   * @param rtt The round trip time in nanoseconds.
+   */
+  public void record(ZMQEndpoint endpoint, long rtt) {
+    for (;;) {
+      Double current = _latencies.get(endpoint);
+      if (current == null) {
+        if (_latencies.putIfAbsent(endpoint, (double) rtt) == null) {
+          return;
+        }
+      } else if (_latencies.replace(endpoint, current, current + ALPHA * (rtt - current))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return The average round trip time of the endpoint in nanoseconds, or -1 if unknown.
+   */
+  public long getLatency(ZMQEndpoint endpoint) {
+    Double latency = _latencies.get(endpoint);
+    return latency != null ? latency.longValue() : -1;
+  }
+
+  /**
+   * Measures the time to establish a TCP connection to the endpoint and records it. Only tcp
+   * endpoints can be probed.
+   *
+   * @return The measured round trip time in nanoseconds, or -1 if the probe failed.
+   */
+  public long probe(ZMQEndpoint endpoint) {
+    int timeout = _probe_timeout;
+    if (timeout == 0 || !endpoint.type.equals("tcp")) {
+      return -1;
+    }
+    InetSocketAddress address;
+    try {
+      URI uri = new URI(endpoint.uri);
+      address = new InetSocketAddress(uri.getHost(), uri.getPort());
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return -1;
+    }
+    long start = System.nanoTime();
+    try (Socket socket = new Socket()) {
+      socket.connect(address, timeout);
+    } catch (IOException e) {
+      log.debug(String.format("Failed to probe %s", endpoint), e);
+      return -1;
+    }
+    long rtt = System.nanoTime() - start;
+    record(endpoint, rtt);
+    return rtt;
+  }
+
+  /**
+   * Starts probing the endpoint in the background, unless it is already being probed.
+   */
+  public void probeAsync(final ZMQEndpoint endpoint) {
+    if (_probe_timeout == 0 || !endpoint.type.equals("tcp") || !_probing.add(endpoint)) {
+      return;
+    }
+    PROBES.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          probe(endpoint);
+        } finally {
+          _probing.remove(endpoint);
+        }
+      }
+    });
+  }
+
+  /**
+   * Ranks the endpoint by the latency measured so far, the fresh probe will be taken into account
+   * on the next query.
+   */
+  @Override
+  public float distance(ZMQEndpoint endpoint, String localhost) {
+    float distance = _fallback.distance(endpoint, localhost);
+    if (distance > 1.f) {
+      return distance;
+    }
+    probeAsync(endpoint);
+    long latency = getLatency(endpoint);
+    if (latency < 0) {
+      return distance;
+    }
+    return (float) latency / (latency + _scale);
+  }
+}
@@ -0,0 +1,127 @@
+package com.samsung.veles.mastodon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Growable byte array which holds a whole message: the compressed pickle of a job on its way to
+ * the reactor thread or a received reply on its way from it. The buffers are reused through
+ * {@link #POOL}, so that the serialization on the caller threads does not allocate per job. The
+ * arrays of the huge messages are not kept in the pooled buffers but are handed to the next buffer
+ * which grows that large, or to the next large out-of-band buffer of {@link OutOfBandPickler}.
+ */
+class MessageBuffer extends ByteArrayOutputStream {
+  private static final int INITIAL_SIZE = 64 * 1024;
+  // larger arrays are taken away on release so that a single huge job does not pin the memory
+  private static final int MAX_RETAINED_SIZE = 4 * 1024 * 1024;
+  // the total size of the large arrays kept for the next messages of that size
+  private static final long MAX_SPARE_SIZE = 64 * 1024 * 1024;
+
+  private static final ConcurrentLinkedQueue<byte[]> SPARE = new ConcurrentLinkedQueue<>();
+  private static final AtomicLong SPARE_SIZE = new AtomicLong();
+
+  static final ObjectPool<MessageBuffer> POOL = new ObjectPool<MessageBuffer>() {
+    @Override
+    protected MessageBuffer create() {
+      return new MessageBuffer();
+    }
+
+    @Override
+    protected void reset(MessageBuffer buffer) {
+      buffer.reset();
+      if (buffer.buf.length > MAX_RETAINED_SIZE) {
+        putSpare(buffer.buf);
+        buffer.buf = new byte[INITIAL_SIZE];
+      }
+    }
+  };
+
+  MessageBuffer() {
+    super(INITIAL_SIZE);
+  }
+
+  /**
+   * @return The internal array, valid up to size().
+   */
+  byte[] array() {
+    return buf;
+  }
+
+  @Override
+  public synchronized void write(int b) {
+    if (count == buf.length) {
+      grow(count + 1);
+    }
+    super.write(b);
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) {
+    if (count + len > buf.length) {
+      grow(count + len);
+    }
+    super.write(b, off, len);
+  }
+
+  /**
+   * Enlarges the array, reusing a spare one if it is big enough.
+   */
+  private void grow(int size) {
+    int capacity = Math.max(buf.length * 2, size);
+    byte[] next = capacity > MAX_RETAINED_SIZE ? takeSpare(size) : null;
+    if (next == null) {
+      next = new byte[capacity];
+    }
+    System.arraycopy(buf, 0, next, 0, count);
+    buf = next;
+  }
+
+  /**
+   * @return The array of at least the given size for the out-of-band buffer, the spare one if the
+   *         size is large.
+   */
+  static byte[] allocate(int size) {
+    byte[] array = size > MAX_RETAINED_SIZE ? takeSpare(size) : null;
+    return array != null ? array : new byte[size];
+  }
+
+  /**
+   * Keeps the large array which is no longer used for the next message of that size.
+   */
+  static void recycle(byte[] array) {
+    if (array.length > MAX_RETAINED_SIZE) {
+      putSpare(array);
+    }
+  }
+
+  private static byte[] takeSpare(int size) {
+    byte[] spare = SPARE.poll();
+    if (spare == null) {
+      return null;
+    }
+    SPARE_SIZE.addAndGet(-spare.length);
+    if (spare.length < size) {
+      putSpare(spare);
+      return null;
+    }
+    return spare;
+  }
+
+  private static void putSpare(byte[] array) {
+    if (SPARE_SIZE.addAndGet(array.length) > MAX_SPARE_SIZE) {
+      SPARE_SIZE.addAndGet(-array.length);
+      return;
+    }
+    SPARE.add(array);
+  }
+
+  /**
+   * @return The stream to read the contents from, without copying.
+   */
+  InputStream getInputStream() {
+    return new ByteArrayInputStream(buf, 0, count);
+  }
+}
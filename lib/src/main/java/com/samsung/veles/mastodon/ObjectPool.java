@@ -0,0 +1,58 @@
+package com.samsung.veles.mastodon;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded lock-free pool of reusable objects, such as buffers or native codec states. When the
+ * pool is empty, a new object is created; when it is full, the released object is destroyed.
+ */
+public abstract class ObjectPool<T> {
+  /**
+   * The default capacity, enough for every core to serialize and deserialize at the same time.
+   */
+  public static final int DEFAULT_CAPACITY = Runtime.getRuntime().availableProcessors() * 2;
+
+  private final ConcurrentLinkedQueue<T> _free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger _size = new AtomicInteger();
+  private final int _capacity;
+
+  public ObjectPool() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public ObjectPool(int capacity) {
+    _capacity = capacity;
+  }
+
+  protected abstract T create();
+
+  /**
+   * Brings the released object to its initial state.
+   */
+  protected void reset(T obj) {}
+
+  /**
+   * Frees the resources of the object which does not fit into the pool.
+   */
+  protected void destroy(T obj) {}
+
+  public T acquire() {
+    T obj = _free.poll();
+    if (obj == null) {
+      return create();
+    }
+    _size.decrementAndGet();
+    return obj;
+  }
+
+  public void release(T obj) {
+    reset(obj);
+    if (_size.incrementAndGet() > _capacity) {
+      _size.decrementAndGet();
+      destroy(obj);
+      return;
+    }
+    _free.add(obj);
+  }
+}
@@ -0,0 +1,151 @@
+package com.samsung.veles.mastodon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.razorvine.pickle.Opcodes;
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.Pickler;
+
+/**
+ * Pickler which takes the large primitive arrays out of the pickle, in the spirit of pickle
+ * protocol 5. Every float[], double[], int[] and long[] of at least the threshold size is copied
+ * into a little-endian ByteBuffer and only a reference is written to the pickle:
+ * {@code numpy.frombuffer(NEXT_BUFFER, dtype)}. The buffers are then sent as separate raw frames,
+ * so that the receiving side loads the pickle with {@code pickle.loads(data, buffers=frames)}.
+ * {@link OutOfBandUnpickler} reads such pickles back. The arrays of the large buffers are shared
+ * with {@link MessageBuffer}, so that they are reused once the buffers are passed to release().
+ */
+public class OutOfBandPickler extends Pickler {
+  static final short NEXT_BUFFER = 0x97;
+  static final short READONLY_BUFFER = 0x98;
+  private static final byte[] FROMBUFFER = "numpy\nfrombuffer\n".getBytes();
+
+  private final int _threshold;
+  private final List<ByteBuffer> _buffers = new ArrayList<>();
+  private OutputStream _out;
+
+  /**
+   * @param threshold The minimal size of the array in bytes to be taken out of the pickle.
+   */
+  public OutOfBandPickler(int threshold) {
+    _threshold = threshold;
+  }
+
+  public int getThreshold() {
+    return _threshold;
+  }
+
+  /**
+   * @return The buffers referenced from the last pickle, in the order of reference.
+   */
+  public List<ByteBuffer> getBuffers() {
+    return _buffers;
+  }
+
+  @Override
+  public void dump(Object o, OutputStream stream) throws IOException, PickleException {
+    _buffers.clear();
+    _out = stream;
+    try {
+      super.dump(o, stream);
+    } finally {
+      _out = null;
+    }
+  }
+
+  @Override
+  public void save(Object o) throws PickleException, IOException {
+    ByteBuffer buffer = toBuffer(o);
+    if (buffer == null) {
+      super.save(o);
+      return;
+    }
+    _buffers.add(buffer);
+    _out.write(Opcodes.GLOBAL);
+    _out.write(FROMBUFFER);
+    _out.write(NEXT_BUFFER);
+    byte[] dtype = getDtype(o).getBytes();
+    _out.write(Opcodes.BINUNICODE);
+    _out.write(dtype.length);
+    _out.write(0);
+    _out.write(0);
+    _out.write(0);
+    _out.write(dtype);
+    _out.write(Opcodes.TUPLE2);
+    _out.write(Opcodes.REDUCE);
+  }
+
+  private ByteBuffer toBuffer(Object o) {
+    if (o instanceof float[]) {
+      float[] array = (float[]) o;
+      ByteBuffer buffer = allocate(array.length * 4);
+      if (buffer != null) {
+        buffer.asFloatBuffer().put(array);
+      }
+      return buffer;
+    }
+    if (o instanceof double[]) {
+      double[] array = (double[]) o;
+      ByteBuffer buffer = allocate(array.length * 8);
+      if (buffer != null) {
+        buffer.asDoubleBuffer().put(array);
+      }
+      return buffer;
+    }
+    if (o instanceof int[]) {
+      int[] array = (int[]) o;
+      ByteBuffer buffer = allocate(array.length * 4);
+      if (buffer != null) {
+        buffer.asIntBuffer().put(array);
+      }
+      return buffer;
+    }
+    if (o instanceof long[]) {
+      long[] array = (long[]) o;
+      ByteBuffer buffer = allocate(array.length * 8);
+      if (buffer != null) {
+        buffer.asLongBuffer().put(array);
+      }
+      return buffer;
+    }
+    return null;
+  }
+
+  private ByteBuffer allocate(int size) {
+    if (size < _threshold) {
+      return null;
+    }
+    return ByteBuffer.wrap(MessageBuffer.allocate(size), 0, size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Returns the arrays of the buffers for reuse. The buffers must not be used afterwards.
+   *
+   * @param buffers The buffers obtained from getBuffers().
+   */
+  public static void release(List<ByteBuffer> buffers) {
+    for (ByteBuffer buffer : buffers) {
+      if (buffer.hasArray()) {
+        MessageBuffer.recycle(buffer.array());
+      }
+    }
+  }
+
+  private static String getDtype(Object o) {
+    if (o instanceof float[]) {
+      return "<f4";
+    }
+    if (o instanceof double[]) {
+      return "<f8";
+    }
+    if (o instanceof int[]) {
+      return "<i4";
+    }
+    return "<i8";
+  }
+}
@@ -0,0 +1,116 @@
+package com.samsung.veles.mastodon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+
+import net.razorvine.pickle.IObjectConstructor;
+import net.razorvine.pickle.Opcodes;
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.PickleUtils;
+import net.razorvine.pickle.Unpickler;
+
+/**
+ * Unpickler which understands the references to out-of-band buffers written by
+ * {@link OutOfBandPickler}. The buffers must be set with setBuffers() before each load().
+ * numpy.frombuffer() is resolved by each instance rather than registered in the global registry of
+ * Pyrolite, so the other unpicklers are not affected.
+ */
+public class OutOfBandUnpickler extends Unpickler {
+  private static final IObjectConstructor FROMBUFFER = new IObjectConstructor() {
+    @Override
+    public Object construct(Object[] args) throws PickleException {
+      if (args.length != 2 || !(args[1] instanceof String)) {
+        throw new PickleException("Unsupported numpy.frombuffer() arguments");
+      }
+      ByteBuffer buffer;
+      if (args[0] instanceof ByteBuffer) {
+        buffer = ((ByteBuffer) args[0]).duplicate();
+      } else if (args[0] instanceof byte[]) {
+        buffer = ByteBuffer.wrap((byte[]) args[0]);
+      } else {
+        throw new PickleException("Unsupported numpy.frombuffer() arguments");
+      }
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      switch ((String) args[1]) {
+        case "<f4": {
+          float[] array = new float[buffer.remaining() / 4];
+          buffer.asFloatBuffer().get(array);
+          return array;
+        }
+        case "<f8": {
+          double[] array = new double[buffer.remaining() / 8];
+          buffer.asDoubleBuffer().get(array);
+          return array;
+        }
+        case "<i4": {
+          int[] array = new int[buffer.remaining() / 4];
+          buffer.asIntBuffer().get(array);
+          return array;
+        }
+        case "<i8": {
+          long[] array = new long[buffer.remaining() / 8];
+          buffer.asLongBuffer().get(array);
+          return array;
+        }
+        default:
+          throw new PickleException("Unsupported dtype " + args[1]);
+      }
+    }
+  };
+
+  private List<ByteBuffer> _buffers = Collections.emptyList();
+  private int _next = 0;
+  // the stream being loaded, for the GLOBAL opcodes
+  private InputStream _input;
+
+  /**
+   * @param buffers The buffers the next pickle refers to.
+   */
+  public void setBuffers(List<ByteBuffer> buffers) {
+    _buffers = buffers;
+    _next = 0;
+  }
+
+  @Override
+  public Object load(InputStream stream) throws PickleException, IOException {
+    _input = stream;
+    try {
+      return super.load(stream);
+    } finally {
+      _input = null;
+    }
+  }
+
+  @Override
+  protected void dispatch(short key) throws PickleException, IOException {
+    switch (key) {
+      case Opcodes.GLOBAL: {
+        String module = PickleUtils.readline(_input);
+        String name = PickleUtils.readline(_input);
+        if (module.equals("numpy") && name.equals("frombuffer")) {
+          stack.add(FROMBUFFER);
+        } else {
+          // the same lookup, taking the names from the stack
+          stack.add(module);
+          stack.add(name);
+          super.dispatch(Opcodes.STACK_GLOBAL);
+        }
+        break;
+      }
+      case OutOfBandPickler.NEXT_BUFFER:
+        if (_next >= _buffers.size()) {
+          throw new PickleException("Not enough out-of-band buffers");
+        }
+        stack.add(_buffers.get(_next++));
+        break;
+      case OutOfBandPickler.READONLY_BUFFER:
+        break;
+      default:
+        super.dispatch(key);
+    }
+  }
+}
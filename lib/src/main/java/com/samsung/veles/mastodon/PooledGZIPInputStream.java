@@ -0,0 +1,208 @@
+package com.samsung.veles.mastodon;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * GZIP decompressing stream which takes the native Inflater state and the input buffer from pools
+ * and returns them on close(). Reads exactly one GZIP member and never reads past its trailer, so
+ * it is safe to use on top of {@link ZMQInputStream}.
+ */
+public class PooledGZIPInputStream extends FilterInputStream {
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private static class State {
+    final Inflater inflater = new Inflater(true);
+    final CRC32 crc = new CRC32();
+    final byte[] small = new byte[10];
+  }
+
+  private static final ObjectPool<State> STATES = new ObjectPool<State>() {
+    @Override
+    protected State create() {
+      return new State();
+    }
+
+    @Override
+    protected void reset(State state) {
+      state.inflater.reset();
+      state.crc.reset();
+    }
+
+    @Override
+    protected void destroy(State state) {
+      state.inflater.end();
+    }
+  };
+
+  private final ObjectPool<byte[]> _buffers;
+  private State _state;
+  private byte[] _buf;
+  private int _length = 0;
+  private boolean _eos = false;
+
+  /**
+   * @param in The stream with the compressed data.
+   * @param buffers The pool to take the input buffer from.
+   */
+  public PooledGZIPInputStream(InputStream in, ObjectPool<byte[]> buffers) throws IOException {
+    super(in);
+    _buffers = buffers;
+    _state = STATES.acquire();
+    _buf = buffers.acquire();
+    try {
+      readHeader();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  private void readFully(byte[] b, int off, int len) throws IOException {
+    int pos = off;
+    while (pos < off + len) {
+      int read = in.read(b, pos, off + len - pos);
+      if (read <= 0) {
+        throw new EOFException();
+      }
+      pos += read;
+    }
+  }
+
+  private void skipString() throws IOException {
+    do {
+      readFully(_state.small, 0, 1);
+    } while (_state.small[0] != 0);
+  }
+
+  private void readHeader() throws IOException {
+    byte[] header = _state.small;
+    readFully(header, 0, 10);
+    if (header[0] != 0x1f || header[1] != (byte) 0x8b) {
+      throw new ZipException("Not in GZIP format");
+    }
+    if (header[2] != 8) {
+      throw new ZipException("Unsupported compression method");
+    }
+    int flags = header[3];
+    if ((flags & FEXTRA) != 0) {
+      readFully(header, 0, 2);
+      int length = (header[0] & 0xff) | ((header[1] & 0xff) << 8);
+      while (length > 0) {
+        int chunk = Math.min(length, header.length);
+        readFully(header, 0, chunk);
+        length -= chunk;
+      }
+    }
+    if ((flags & FNAME) != 0) {
+      skipString();
+    }
+    if ((flags & FCOMMENT) != 0) {
+      skipString();
+    }
+    if ((flags & FHCRC) != 0) {
+      readFully(header, 0, 2);
+    }
+  }
+
+  private void readTrailer() throws IOException {
+    byte[] trailer = _state.small;
+    int remaining = Math.min(_state.inflater.getRemaining(), 8);
+    System.arraycopy(_buf, _length - _state.inflater.getRemaining(), trailer, 0, remaining);
+    if (remaining < 8) {
+      readFully(trailer, remaining, 8 - remaining);
+    }
+    if (readInt(trailer, 0) != (int) _state.crc.getValue()
+        || readInt(trailer, 4) != (int) _state.inflater.getBytesWritten()) {
+      throw new ZipException("Corrupt GZIP trailer");
+    }
+  }
+
+  private static int readInt(byte[] buf, int offset) {
+    int res = 0;
+    for (int i = 0; i < 4; i++) {
+      res |= (buf[offset + i] & 0xff) << (i * 8);
+    }
+    return res;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read = read(_state.small, 0, 1);
+    return read == -1 ? -1 : _state.small[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (_state == null) {
+      throw new IOException("Stream closed");
+    }
+    if (_eos) {
+      return -1;
+    }
+    if (len == 0) {
+      return 0;
+    }
+    Inflater inflater = _state.inflater;
+    while (true) {
+      int read;
+      try {
+        read = inflater.inflate(b, off, len);
+      } catch (DataFormatException e) {
+        throw new ZipException(e.getMessage());
+      }
+      if (read > 0) {
+        _state.crc.update(b, off, read);
+        return read;
+      }
+      if (inflater.finished() || inflater.needsDictionary()) {
+        readTrailer();
+        _eos = true;
+        return -1;
+      }
+      if (inflater.needsInput()) {
+        _length = in.read(_buf, 0, _buf.length);
+        if (_length <= 0) {
+          throw new EOFException("Unexpected end of GZIP input stream");
+        }
+        inflater.setInput(_buf, 0, _length);
+      }
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    return _eos ? 0 : 1;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    throw new IOException("skip() is not supported");
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (_state == null) {
+      return;
+    }
+    STATES.release(_state);
+    _buffers.release(_buf);
+    _state = null;
+    _buf = null;
+    in.close();
+  }
+}
@@ -0,0 +1,122 @@
+package com.samsung.veles.mastodon;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * GZIP compressing stream which takes the native Deflater state and the output buffer from pools
+ * and returns them on close(), unlike {@link java.util.zip.GZIPOutputStream} which allocates them
+ * for every stream.
+ */
+public class PooledGZIPOutputStream extends FilterOutputStream {
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+  private static class State {
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    final CRC32 crc = new CRC32();
+    final byte[] single = new byte[1];
+    final byte[] trailer = new byte[8];
+  }
+
+  private static final ObjectPool<State> STATES = new ObjectPool<State>() {
+    @Override
+    protected State create() {
+      return new State();
+    }
+
+    @Override
+    protected void reset(State state) {
+      state.deflater.reset();
+      state.crc.reset();
+    }
+
+    @Override
+    protected void destroy(State state) {
+      state.deflater.end();
+    }
+  };
+
+  private final ObjectPool<byte[]> _buffers;
+  private State _state;
+  private byte[] _buf;
+
+  /**
+   * @param out The stream to write the compressed data to.
+   * @param buffers The pool to take the output buffer from.
+   */
+  public PooledGZIPOutputStream(OutputStream out, ObjectPool<byte[]> buffers) throws IOException {
+    super(out);
+    out.write(HEADER);
+    _buffers = buffers;
+    _state = STATES.acquire();
+    _buf = buffers.acquire();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    _state.single[0] = (byte) b;
+    write(_state.single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (_state == null) {
+      throw new IOException("Stream closed");
+    }
+    if (len == 0) {
+      return;
+    }
+    _state.crc.update(b, off, len);
+    _state.deflater.setInput(b, off, len);
+    while (!_state.deflater.needsInput()) {
+      deflate();
+    }
+  }
+
+  private void deflate() throws IOException {
+    int length = _state.deflater.deflate(_buf, 0, _buf.length);
+    if (length > 0) {
+      out.write(_buf, 0, length);
+    }
+  }
+
+  /**
+   * Writes the remaining compressed data and the GZIP trailer without closing the underlying
+   * stream.
+   */
+  public void finish() throws IOException {
+    Deflater deflater = _state.deflater;
+    deflater.finish();
+    while (!deflater.finished()) {
+      deflate();
+    }
+    writeInt(_state.trailer, 0, (int) _state.crc.getValue());
+    writeInt(_state.trailer, 4, (int) deflater.getBytesRead());
+    out.write(_state.trailer);
+  }
+
+  private static void writeInt(byte[] buf, int offset, int value) {
+    for (int i = 0; i < 4; i++) {
+      buf[offset + i] = (byte) (value >> (i * 8));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (_state == null) {
+      return;
+    }
+    try {
+      finish();
+    } finally {
+      STATES.release(_state);
+      _buffers.release(_buf);
+      _state = null;
+      _buf = null;
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.samsung.veles.mastodon;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of the job results, keyed by the SHA-1 of the pickled job and the workflow id, so
+ * that the repeated identical jobs are answered without a round trip to Veles. The replies are
+ * kept exactly as they were received, compressed: the size bound is exact, and every hit decodes a
+ * fresh copy of the same objects the first caller got, which the caller may modify. The least
+ * recently used results are evicted first, and every result expires after the time to live.
+ */
+public class ResultCache {
+  private static class Entry {
+    final byte[] reply;
+    // System.nanoTime() after which the entry is stale
+    final long expires;
+
+    Entry(byte[] reply, long expires) {
+      this.reply = reply;
+      this.expires = expires;
+    }
+  }
+
+  private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  private final long _max_size;
+  private final long _ttl;
+  // in the order of access, the least recently used first
+  private final LinkedHashMap<ByteBuffer, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long _size = 0;
+  private long _hits = 0;
+  private long _misses = 0;
+  private long _evictions = 0;
+
+  /**
+   * @param maxSize The limit of the total size of the cached replies, in bytes.
+   * @param ttl How long a result stays valid, in milliseconds. 0 means forever.
+   */
+  public ResultCache(long maxSize, long ttl) {
+    if (maxSize < 1 || ttl < 0) {
+      throw new IllegalArgumentException();
+    }
+    _max_size = maxSize;
+    _ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+  }
+
+  /**
+   * @return The cache key of the pickled job.
+   */
+  static ByteBuffer key(String workflowId, byte[] pickle) {
+    MessageDigest digest = DIGESTS.get();
+    digest.update(String.valueOf(workflowId).getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(pickle);
+    return ByteBuffer.wrap(digest.digest());
+  }
+
+  /**
+   * Completes the future with the cached result, if there is one.
+   *
+   * @return Whether the result was found.
+   */
+  boolean load(ByteBuffer key, CompletableFuture<Object> future) {
+    Entry entry;
+    synchronized (this) {
+      entry = _entries.get(key);
+      if (entry != null && _ttl > 0 && System.nanoTime() - entry.expires > 0) {
+        remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        _misses++;
+        return false;
+      }
+      _hits++;
+    }
+    try {
+      future.complete(ZMQReactor.decode(new ByteArrayInputStream(entry.reply)));
+    } catch (IOException | RuntimeException e) {
+      // the job must complete whatever the decoders throw
+      future.completeExceptionally(e);
+    }
+    return true;
+  }
+
+  /**
+   * Caches the reply message. The replies which are larger than the whole cache are skipped.
+   */
+  void store(ByteBuffer key, byte[] reply) {
+    if (reply.length > _max_size) {
+      return;
+    }
+    synchronized (this) {
+      remove(key);
+      _entries.put(key, new Entry(reply, System.nanoTime() + _ttl));
+      _size += reply.length;
+      Iterator<Map.Entry<ByteBuffer, Entry>> it = _entries.entrySet().iterator();
+      while (_size > _max_size) {
+        _size -= it.next().getValue().reply.length;
+        it.remove();
+        _evictions++;
+      }
+    }
+  }
+
+  private void remove(ByteBuffer key) {
+    Entry entry = _entries.remove(key);
+    if (entry != null) {
+      _size -= entry.reply.length;
+    }
+  }
+
+  public synchronized void clear() {
+    _entries.clear();
+    _size = 0;
+  }
+
+  /**
+   * @return The number of jobs answered from the cache.
+   */
+  public synchronized long getHits() {
+    return _hits;
+  }
+
+  /**
+   * @return The number of jobs which were not found in the cache and were sent to Veles.
+   */
+  public synchronized long getMisses() {
+    return _misses;
+  }
+
+  /**
+   * @return The number of results dropped to fit into the size limit.
+   */
+  public synchronized long getEvictions() {
+    return _evictions;
+  }
+
+  /**
+   * @return The total size of the cached replies, in bytes.
+   */
+  public synchronized long getSize() {
+    return _size;
+  }
+
+  public synchronized int getCount() {
+    return _entries.size();
+  }
+}
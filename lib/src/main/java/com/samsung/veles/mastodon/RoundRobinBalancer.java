@@ -0,0 +1,18 @@
+package com.samsung.veles.mastodon;
+
+import java.util.List;
+
+/**
+ * Sends the jobs to each connection in turn.
+ */
+public class RoundRobinBalancer implements LoadBalancer {
+  private int _next = 0;
+
+  @Override
+  public ZMQConnection choose(List<ZMQConnection> connections) {
+    if (_next >= connections.size()) {
+      _next = 0;
+    }
+    return connections.get(_next++);
+  }
+}
@@ -0,0 +1,16 @@
+package com.samsung.veles.mastodon;
+
+import java.io.IOException;
+
+/**
+ * The limit of the jobs in flight was reached and no slot was freed in time, see
+ * {@link VelesManager#setMaxInFlight(int)}.
+ */
+public class TooManyJobsException extends IOException {
+
+  private static final long serialVersionUID = -3263817725440951182L;
+
+  public TooManyJobsException(String message) {
+    super(message);
+  }
+}
@@ -1,34 +1,59 @@
 package com.samsung.veles.mastodon;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.lang.reflect.Array;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Formatter;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
 import net.razorvine.pickle.PickleException;
 import net.razorvine.pickle.Pickler;
-import net.razorvine.pickle.Unpickler;
 
 import org.apache.log4j.Logger;
+import org.tukaani.xz.BasicArrayCache;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.XZInputStream;
 import org.tukaani.xz.XZOutputStream;
@@ -39,6 +64,10 @@ import org.zeromq.ZMQ;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStreamNoFinalizer;
+import com.github.luben.zstd.ZstdOutputStreamNoFinalizer;
 
 
 /**
@@ -55,12 +84,8 @@ public class VelesManager {
           _instance = new VelesManager();
           Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
-              for (Map.Entry<String, ZMQInputStream> pair : _instance._pending.entrySet()) {
-                _instance.popJob(pair.getValue().getSocket(), pair.getKey());
-              }
-              if (_instance._socket != null) {
-                _instance._socket.close();
-              }
+              _instance._refresher.shutdownNow();
+              _instance._reactor.stop();
               _instance._context.term();
             }
           });
@@ -103,15 +128,61 @@ public class VelesManager {
 
   private static final int COMPRESSION_BUFFER_SIZE = 128 * 1024;
   private static Logger log = Logger.getLogger(VelesManager.class.getName());
-  private String _host;
+  private volatile String _host;
   private int _port;
   private String _workflowId;
-  private final Map<String, List<ZMQEndpoint>> _endpoints =
-      new TreeMap<String, List<ZMQEndpoint>>();
-  private ZMQEndpoint _currentEndpoint;
-  private int _counter = 0;
-  private int _refresh_interval = 100;
+  // the whole topology; replaced, never modified
+  private volatile Map<String, List<ZMQEndpoint>> _endpoints =
+      Collections.<String, List<ZMQEndpoint>>emptyMap();
+  // the endpoints jobs are distributed among, one per slave
+  private volatile List<ZMQEndpoint> _currentEndpoints;
+  // the computing power the master reports for the slave of each endpoint; replaced
+  private volatile Map<ZMQEndpoint, Double> _capacities =
+      Collections.<ZMQEndpoint, Double>emptyMap();
+  // the balancer whose weights follow _capacities, or null
+  private volatile WeightedBalancer _capacity_balancer;
+  private final AtomicInteger _counter = new AtomicInteger();
+  private volatile int _refresh_interval = 100;
+  private volatile long _refresh_period = 10000;
+  private volatile int _out_of_band_threshold = -1;
+  private volatile int _chunk_size = 0;
+  private volatile boolean _compact_ids = false;
+  private final InFlightLimiter _limiter = new InFlightLimiter();
+  private volatile long _in_flight_timeout = -1;
+  private volatile EndpointMetrics _metrics = new SameHostMetrics();
+  private volatile ResultCache _result_cache;
+  private volatile int _zstd_level = Zstd.defaultCompressionLevel();
+  private final AdaptiveCompression _adaptive = new AdaptiveCompression();
+  private final DictionaryTrainer _dictionary_trainer = new DictionaryTrainer(
+      DictionaryTrainer.DEFAULT_DICTIONARY_SIZE, DictionaryTrainer.DEFAULT_SAMPLES_SIZE,
+      ForkJoinPool.commonPool());
+  private final ScheduledExecutorService _refresher = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "veles-mastodon-refresh");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  private final AtomicBoolean _refreshing = new AtomicBoolean(false);
+  private ScheduledFuture<?> _periodicRefresh;
+  private final Runnable _backgroundRefresh = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        refresh();
+      } catch (Exception e) {
+        log.warn("Failed to refresh the list of Veles slaves, keeping the old one", e);
+      } finally {
+        _refreshing.set(false);
+      }
+    }
+  };
 
+  /**
+   * @return The number of submitted jobs after which the topology is refreshed in background.
+   */
   public int getRefreshInterval() {
     return _refresh_interval;
   }
@@ -123,6 +194,32 @@ public class VelesManager {
     _refresh_interval = value;
   }
 
+  /**
+   * @return The period of the background topology refresh, in milliseconds.
+   */
+  public long getRefreshPeriod() {
+    return _refresh_period;
+  }
+
+  public void setRefreshPeriod(long value) {
+    if (value < 1) {
+      throw new IllegalArgumentException();
+    }
+    synchronized (this) {
+      _refresh_period = value;
+      if (_periodicRefresh != null) {
+        schedulePeriodicRefresh();
+      }
+    }
+  }
+
+  /**
+   * Discovers the slaves of the Veles workflow and connects to them. The topology is then kept up
+   * to date in background, every getRefreshPeriod() milliseconds and after every
+   * getRefreshInterval() submitted jobs.
+   *
+   * @throws NoSlavesExistException The master reported no slaves we can connect to.
+   */
   public void connect(String host, int port, String workflowId) throws UnknownHostException,
       IOException, NoSlavesExistException {
     synchronized (this) {
@@ -130,7 +227,22 @@ public class VelesManager {
       _port = port;
       _workflowId = workflowId;
       refresh();
+      schedulePeriodicRefresh();
+    }
+  }
+
+  private void schedulePeriodicRefresh() {
+    if (_periodicRefresh != null) {
+      _periodicRefresh.cancel(false);
     }
+    _periodicRefresh = _refresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        if (_refreshing.compareAndSet(false, true)) {
+          _backgroundRefresh.run();
+        }
+      }
+    }, _refresh_period, _refresh_period, TimeUnit.MILLISECONDS);
   }
 
   /**
@@ -184,7 +296,7 @@ public class VelesManager {
   }
 
   /**
-   * Parse response (JSON) from master node and update ZeroMQ endpoints.
+   * Parse response (JSON) from master node and replace ZeroMQ endpoints.
    *
    * @param response Master node response (JSON).
    * @throws UnknownHostException
@@ -192,7 +304,8 @@ public class VelesManager {
   private void updateZmqEndpoints(final byte[] response) throws UnknownHostException {
     // Parse the response - JSON bytes
     JSONObject parsed = (JSONObject) JSON.parse(response);
-    _endpoints.clear();
+    Map<String, List<ZMQEndpoint>> all = new TreeMap<String, List<ZMQEndpoint>>();
+    Map<ZMQEndpoint, Double> capacities = new HashMap<ZMQEndpoint, Double>();
     for (String key : parsed.keySet()) {
       // For each node with ID = key
       JSONObject body = parsed.getJSONObject(key);
@@ -215,60 +328,385 @@ public class VelesManager {
         }
         endpoints.add(new ZMQEndpoint(hostname, kv.getKey(), uri));
       }
-      _endpoints.put(key, endpoints);
+      all.put(key, Collections.unmodifiableList(endpoints));
+      Double power = body.getDouble("power");
+      if (power != null && power > 0) {
+        for (ZMQEndpoint endpoint : endpoints) {
+          capacities.put(endpoint, power);
+        }
+      }
     }
+    _endpoints = Collections.unmodifiableMap(all);
+    _capacities = Collections.unmodifiableMap(capacities);
   }
 
   /**
-   * Creates a new ZeroMQ DEALER socket, reassigns input and output streams.
+   * Makes the reactor connect to each of _currentEndpoints and waits for it. Existing sockets to
+   * those endpoints are reused, the sockets to the rest are closed once all the replies to them
+   * are received.
    * 
-   * openStreams() invalidates getFD() result.
+   * openStreams() may invalidate getFD() result.
    */
-  private void openStreams() {
-    if (_socket != null) {
-      if (_socket_refs.get(getFD()) == 0) {
-        _socket_refs.remove(getFD());
-        _socket.close();
-      }
-    }
-    _socket = _context.socket(ZMQ.DEALER);
-    _socket_refs.put(getFD(), 0);
-    _socket.connect(_currentEndpoint.uri);
-    _in = new ZMQInputStream(_socket);
-    _out = new ZMQOutputStream(_socket);
+  private void openStreams() throws IOException {
+    await(_reactor.setEndpoints(_currentEndpoints));
   }
 
   /**
-   * Choose nearest ZeroMQ endpoint to current local host using specified EndpointMetrics.
+   * Choose the nearest ZeroMQ endpoint of each slave to current local host using specified
+   * EndpointMetrics. Slaves without acceptable endpoints are skipped.
    *
    * @param EndpointMetrics Functor to measure distance between two hosts.
-   * @return Nearest ZeroMQ endpoint to the current local host.
    * @throws UnknownHostException
    */
-  private void chooseZmqEndpoint(EndpointMetrics EndpointMetrics) throws UnknownHostException {
+  private void chooseZmqEndpoints(EndpointMetrics EndpointMetrics) throws UnknownHostException {
     java.net.InetAddress localHost = java.net.InetAddress.getLocalHost();
     String localHostName = localHost.getHostName();
-    Map<Float, List<ZMQEndpoint>> dist = new TreeMap<Float, List<ZMQEndpoint>>();
+    List<ZMQEndpoint> chosen = new ArrayList<ZMQEndpoint>();
     for (Entry<String, List<ZMQEndpoint>> entry : _endpoints.entrySet()) {
+      ZMQEndpoint nearest = null;
+      float nearestDistance = 0;
       for (final ZMQEndpoint endpoint : entry.getValue()) {
         float distance = EndpointMetrics.distance(endpoint, localHostName);
         if (distance > 1.f) {
           continue;
         }
-        if (!dist.containsKey(distance)) {
-          dist.put(distance, new ArrayList<ZMQEndpoint>());
+        if (nearest == null || distance < nearestDistance) {
+          nearest = endpoint;
+          nearestDistance = distance;
         }
-        dist.get(distance).add(endpoint);
+      }
+      if (nearest != null) {
+        chosen.add(nearest);
+        log.debug(String.format("Selected %s", nearest.toString()));
+      }
+    }
+    _currentEndpoints = chosen;
+  }
+
+  public int getFrameSize() {
+    return _reactor.getFrameSize();
+  }
+
+  /**
+   * Sets the maximal size of ZeroMQ frames the outgoing messages are split into. It applies to the
+   * connections opened after the call. The default is 64 KB.
+   */
+  public void setFrameSize(int value) {
+    _reactor.setFrameSize(value);
+  }
+
+  /**
+   * @return The policy which chooses the compression of the jobs submitted with
+   *         {@link Compression#Adaptive}.
+   */
+  public AdaptiveCompression getAdaptiveCompression() {
+    return _adaptive;
+  }
+
+  /**
+   * @return The trainer of the dictionary for the jobs submitted with
+   *         {@link Compression#ZstdDictionary}.
+   */
+  public DictionaryTrainer getDictionaryTrainer() {
+    return _dictionary_trainer;
+  }
+
+  public int getZstdLevel() {
+    return _zstd_level;
+  }
+
+  /**
+   * Sets the level of {@link Compression#Zstd} for the jobs of this manager, from
+   * Zstd.minCompressionLevel() (fastest) to Zstd.maxCompressionLevel() (strongest). The default is
+   * 3. It also applies to the dictionaries trained by getDictionaryTrainer() afterwards.
+   */
+  public void setZstdLevel(int value) {
+    if (value < Zstd.minCompressionLevel() || value > Zstd.maxCompressionLevel()) {
+      throw new IllegalArgumentException();
+    }
+    _zstd_level = value;
+    _dictionary_trainer.setLevel(value);
+  }
+
+  public boolean getCompactIds() {
+    return _compact_ids;
+  }
+
+  /**
+   * Enables sending the job identifiers in the 16-byte binary form instead of the 36-character
+   * UUID string. The slaves must support such messages. Disabled by default.
+   */
+  public void setCompactIds(boolean value) {
+    _compact_ids = value;
+  }
+
+  public int getChunkSize() {
+    return _chunk_size;
+  }
+
+  /**
+   * Enables splitting the pickles larger than the specified size into chunks of that size, which
+   * are compressed and decompressed in parallel, see {@link ChunkedPickle}. The slaves must
+   * support such messages. 0 (the default) disables the feature.
+   */
+  public void setChunkSize(int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    _chunk_size = value;
+  }
+
+  public int getOutOfBandThreshold() {
+    return _out_of_band_threshold;
+  }
+
+  /**
+   * Enables sending the primitive arrays (float[], double[], int[], long[]) of at least the
+   * specified size in bytes as raw out-of-band frames instead of pickling them, see
+   * {@link OutOfBandPickler}. The slaves must support such messages. Negative value (the default)
+   * disables the feature.
+   */
+  public void setOutOfBandThreshold(int value) {
+    _out_of_band_threshold = value;
+  }
+
+  public int getMaxInFlight() {
+    return _limiter.getLimit();
+  }
+
+  /**
+   * Sets the maximal number of the submitted jobs which are not answered yet. When it is reached,
+   * the submission waits for getInFlightTimeout(). 0 (the default) means unlimited.
+   */
+  public void setMaxInFlight(int value) {
+    _limiter.setLimit(value);
+  }
+
+  /**
+   * @return The number of the submitted jobs which are not answered yet.
+   */
+  public int getInFlight() {
+    return _limiter.getInFlight();
+  }
+
+  public long getInFlightTimeout() {
+    return _in_flight_timeout;
+  }
+
+  /**
+   * Sets how long the submission waits for room when getMaxInFlight() jobs are in flight, in
+   * milliseconds. Then submit() throws and submitAsync() returns the future failed with
+   * {@link TooManyJobsException}. 0 fails at once, negative (the default) waits forever.
+   */
+  public void setInFlightTimeout(long value) {
+    _in_flight_timeout = value;
+  }
+
+  public int getMaxInFlightPerSlave() {
+    return _reactor.getMaxWindow();
+  }
+
+  /**
+   * Sets the highest limit of the jobs in flight to a single slave. The actual limit of each slave
+   * is adjusted from the observed latency by {@link AdaptiveWindow}, the jobs which do not fit
+   * wait in the internal queue. 0 removes the limits. The default is 128.
+   */
+  public void setMaxInFlightPerSlave(int value) throws IOException {
+    await(_reactor.setMaxWindow(value));
+  }
+
+  public double getHedgeQuantile() {
+    return _reactor.getHedgeQuantile();
+  }
+
+  /**
+   * Enables hedged requests: the job which is not answered for longer than the specified quantile
+   * of the recent latencies, e.g. 0.95, is sent to one more slave, and the first reply wins. It
+   * trades a few percent of extra load for a much shorter tail latency. 0 (the default) disables
+   * hedging. The jobs must be idempotent.
+   */
+  public void setHedgeQuantile(double value) throws IOException {
+    await(_reactor.setHedgeQuantile(value));
+  }
+
+  public long getFailoverTimeout() {
+    return _reactor.getFailoverTimeout();
+  }
+
+  /**
+   * Enables failover: if a slave with jobs in flight does not reply for the specified number of
+   * milliseconds, it is considered dead and its jobs are transparently resubmitted to the other
+   * slaves, from the compressed copies kept in the retry buffer. The timeout must exceed the
+   * longest job. 0 (the default) disables failover. The jobs must be idempotent.
+   */
+  public void setFailoverTimeout(long value) {
+    _reactor.setFailoverTimeout(value);
+  }
+
+  public long getReplyTimeout() {
+    return _reactor.getReplyTimeout();
+  }
+
+  /**
+   * Sets how long a slave with jobs in flight may stay silent, in milliseconds, before it is
+   * counted as failing by its EndpointHealth, which eventually opens the circuit. Once the latency
+   * of the slave is known, the silence or a reply longer than several average round trips counts
+   * as well. It works regardless of failover. 0 disables the checks, the default is 5000. The
+   * slave which lost the race for a hedged job gets as long to reply before its slot is released.
+   */
+  public void setReplyTimeout(long value) {
+    _reactor.setReplyTimeout(value);
+  }
+
+  public long getRetryBufferSize() {
+    return _reactor.getRetryBufferSize();
+  }
+
+  /**
+   * Sets the limit of the total size in bytes of the compressed jobs kept until answered for
+   * failover and hedging. The jobs which do not fit cannot be resubmitted. The default is 64 MB.
+   */
+  public void setRetryBufferSize(long value) {
+    _reactor.setRetryBufferSize(value);
+  }
+
+  public long getCircuitCooldown() {
+    return _reactor.getCircuitCooldown();
+  }
+
+  /**
+   * Sets how long the slave whose circuit was opened by failures gets no jobs before a single
+   * probe job is sent to it, in milliseconds. The default is 1000.
+   */
+  public void setCircuitCooldown(long value) {
+    _reactor.setCircuitCooldown(value);
+  }
+
+  /**
+   * @return The error rate, latency and circuit state of the slave endpoint, or null if it was
+   *         never connected to.
+   */
+  public EndpointHealth getEndpointHealth(ZMQEndpoint endpoint) {
+    return _reactor.getHealth(endpoint);
+  }
+
+  public EndpointMetrics getEndpointMetrics() {
+    return _metrics;
+  }
+
+  /**
+   * Sets the metrics which choose the endpoint of each slave on every refresh. The default is
+   * {@link SameHostMetrics}, {@link MeasuredLatencyMetrics} follows the probed network latency.
+   */
+  public void setEndpointMetrics(EndpointMetrics value) {
+    if (value == null) {
+      throw new IllegalArgumentException();
+    }
+    _metrics = value;
+  }
+
+  public ResultCache getResultCache() {
+    return _result_cache;
+  }
+
+  /**
+   * Enables the client-side cache of the results: the job which is identical to a recently
+   * executed one, byte for byte after pickling and in the same workflow, is answered from the
+   * cache without being sent. Use it only for the deterministic jobs. null (the default) disables
+   * the cache. The jobs with out-of-band buffers are never cached.
+   */
+  public void setResultCache(ResultCache value) {
+    _result_cache = value;
+  }
+
+  public LoadBalancer getLoadBalancer() {
+    return _reactor.getBalancer();
+  }
+
+  /**
+   * Sets the strategy which distributes the jobs among the slaves. The default is
+   * {@link LeastOutstandingBalancer}.
+   *
+   * @param value The new load balancer. It is invoked only from the internal I/O thread.
+   */
+  public void setLoadBalancer(LoadBalancer value) {
+    _reactor.setBalancer(value);
+    _capacity_balancer = null;
+  }
+
+  /**
+   * @return The computing power of the slave the master reported, or 0 if unknown.
+   */
+  public double getCapacity(ZMQEndpoint endpoint) {
+    Double capacity = _capacities.get(endpoint);
+    return capacity != null ? capacity : 0;
+  }
+
+  public boolean isCapacityWeighted() {
+    return _capacity_balancer != null;
+  }
+
+  /**
+   * Makes each slave receive the share of jobs proportional to the computing power which the
+   * master reports for it, so that the GPU slaves get more work than the CPU-only ones. The weights
+   * follow every topology refresh. The slaves without the reported power get the average weight.
+   * Disabling reverts to {@link LeastOutstandingBalancer}.
+   */
+  public void setCapacityWeighted(boolean value) {
+    if (!value) {
+      setLoadBalancer(new LeastOutstandingBalancer());
+      return;
+    }
+    WeightedBalancer balancer = new WeightedBalancer();
+    applyCapacities(balancer);
+    _reactor.setBalancer(balancer);
+    _capacity_balancer = balancer;
+  }
+
+  private void applyCapacities(WeightedBalancer balancer) {
+    Map<ZMQEndpoint, Double> capacities = _capacities;
+    List<ZMQEndpoint> current = _currentEndpoints;
+    if (current == null) {
+      return;
+    }
+    double total = 0;
+    int known = 0;
+    for (ZMQEndpoint endpoint : current) {
+      Double capacity = capacities.get(endpoint);
+      if (capacity != null) {
+        total += capacity;
+        known++;
       }
     }
+    for (ZMQEndpoint endpoint : current) {
+      Double capacity = capacities.get(endpoint);
+      if (capacity != null) {
+        balancer.setWeight(endpoint, capacity);
+      } else if (known > 0) {
+        balancer.setWeight(endpoint, total / known);
+      }
+    }
+  }
+
+  public Executor getResultExecutor() {
+    return _reactor.getExecutor();
+  }
 
-    List<ZMQEndpoint> list = dist.get(Collections.min(dist.keySet()));
-    Random generator = new Random();
-    _currentEndpoint = list.get(generator.nextInt(list.size()));
-    log.debug(String.format("Selected %s", _currentEndpoint.toString()));
+  /**
+   * Sets the executor which decompresses and unpickles the results, off the internal I/O thread.
+   * The default is the common fork-join pool.
+   */
+  public void setResultExecutor(Executor value) {
+    _reactor.setExecutor(value);
   }
 
-  private void refresh() throws UnknownHostException, IOException, NoSlavesExistException {
+  /**
+   * Queries the master for the current topology and switches to it. Jobs being submitted
+   * concurrently keep using the old connections until the new ones are opened.
+   */
+  private synchronized void refresh() throws UnknownHostException, IOException,
+      NoSlavesExistException {
+    _counter.set(0);
     // Get response from master node
     byte[] response = getResponseFromMaster();
     if (response.length == 0) {
@@ -280,9 +718,18 @@ public class VelesManager {
       throw new NoSlavesExistException();
     }
     // select the optimal endpoint
-    chooseZmqEndpoint(new SameHostMetrics());
-    openStreams();
-    _counter = 0;
+    List<ZMQEndpoint> previous = _currentEndpoints;
+    chooseZmqEndpoints(_metrics);
+    if (_currentEndpoints.isEmpty()) {
+      throw new NoSlavesExistException();
+    }
+    WeightedBalancer balancer = _capacity_balancer;
+    if (balancer != null) {
+      applyCapacities(balancer);
+    }
+    if (!_currentEndpoints.equals(previous)) {
+      openStreams();
+    }
   }
 
   public String getHost() {
@@ -293,37 +740,130 @@ public class VelesManager {
     return _port;
   }
 
-  private final Pickler _pickler = new Pickler();
-  private final Unpickler _unpickler = new Unpickler();
   private final ZMQ.Context _context = ZMQ.context(1);
-  private ZMQ.Socket _socket;
-  private ZMQOutputStream _out;
-  private ZMQInputStream _in;
-  private HashMap<String, Object> _results = new HashMap<>();
-  private TreeMap<String, ZMQInputStream> _pending = new TreeMap<>();
-  private TreeMap<Long, Integer> _socket_refs = new TreeMap<>();
+  private final ZMQReactor _reactor = new ZMQReactor(_context);
+  // jobs sent with submit() which were not yield()-ed yet
+  private final ConcurrentHashMap<String, CompletableFuture<Object>> _submitted =
+      new ConcurrentHashMap<>();
+  // identifiers of the submit()-ted jobs in the order of their completion; the ones which are
+  // already yield()-ed are skipped by take() and poll() and purged now and then
+  private final LinkedBlockingQueue<String> _completed = new LinkedBlockingQueue<>();
+  // how many yield()-ed identifiers may stay in _completed beyond the live ones
+  static final int COMPLETED_SLACK = 64;
+
+  public VelesManager() {
+    _reactor.start();
+  }
 
+  /**
+   * @return The file descriptor of the socket which new jobs are sent to.
+   * @deprecated The sockets are owned by the internal I/O thread and must not be read from
+   *             outside. Use {@link #submitAsync(Object, Compression)} to get notified about the
+   *             results.
+   */
+  @Deprecated
   public long getFD() {
-    return _socket.getFD();
+    return _reactor.getFD();
   }
 
+  /**
+   * The compression methods. The ordinal is sent in the message header, so the new ones must be
+   * appended to the end, before Adaptive. Adaptive is not sent, it is replaced with one of the
+   * others chosen for each job by {@link AdaptiveCompression}; it is opt-in, since by default it
+   * picks Lz4 and Zstd, which older slaves do not support. ZstdDictionary uses the dictionary
+   * trained by {@link DictionaryTrainer}.
+   */
   public enum Compression {
-    None, Gzip, Snappy, Lzma2
+    None, Gzip, Snappy, Lzma2, Zstd, Lz4, ZstdDictionary, Adaptive
+  }
+
+  // the picklers are reused, but each thread has its own ones to serialize in parallel
+  private static final ThreadLocal<Pickler> PICKLERS = new ThreadLocal<Pickler>() {
+    @Override
+    protected Pickler initialValue() {
+      return new Pickler();
+    }
+  };
+  private static final ThreadLocal<OutOfBandPickler> OUT_OF_BAND_PICKLERS =
+      new ThreadLocal<OutOfBandPickler>() {
+        @Override
+        protected OutOfBandPickler initialValue() {
+          return new OutOfBandPickler(0);
+        }
+      };
+
+  /**
+   * Serializes the job on the calling thread.
+   *
+   * @param job The object to serialize.
+   * @param buffers Receives the out-of-band buffers which the pickle refers to.
+   */
+  private byte[] pickle(Object job, List<ByteBuffer> buffers) throws IOException,
+      UnsupportedObjectException {
+    int threshold = _out_of_band_threshold;
+    try {
+      if (threshold < 0) {
+        return PICKLERS.get().dumps(job);
+      }
+      OutOfBandPickler pickler = OUT_OF_BAND_PICKLERS.get();
+      if (pickler.getThreshold() != threshold) {
+        pickler = new OutOfBandPickler(threshold);
+        OUT_OF_BAND_PICKLERS.set(pickler);
+      }
+      byte[] pickle = pickler.dumps(job);
+      buffers.addAll(pickler.getBuffers());
+      return pickle;
+    } catch (PickleException ex) {
+      throw new UnsupportedObjectException();
+    }
   }
 
-  private void pushJob(String id) {
-    _socket_refs.put(getFD(), _socket_refs.get(getFD()) + 1);
-    _pending.put(id, _in);
+  private static Object await(Future<?> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
   }
 
-  private void popJob(ZMQ.Socket socket, String id) {
-    _pending.remove(id);
-    int refs = _socket_refs.get(socket.getFD());
-    if (refs == 1 && socket != _socket) {
-      _socket_refs.remove(socket.getFD());
-      socket.close();
-    } else {
-      _socket_refs.put(socket.getFD(), refs - 1);
+  /**
+   * @param timeout The time to wait in nanoseconds.
+   */
+  private static Object await(Future<?> future, long timeout) throws IOException,
+      TimeoutException {
+    try {
+      return future.get(timeout, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Schedules the background refresh once getRefreshInterval() jobs are submitted. Never blocks.
+   */
+  private void refreshIfNeeded() {
+    refreshIfNeeded(1);
+  }
+
+  /**
+   * @param jobs The number of jobs being submitted.
+   */
+  private void refreshIfNeeded(int jobs) {
+    if (_counter.addAndGet(jobs) > _refresh_interval && _host != null
+        && _refreshing.compareAndSet(false, true)) {
+      _refresher.execute(_backgroundRefresh);
     }
   }
 
@@ -354,74 +894,509 @@ public class VelesManager {
    */
   public String submit(Object job, Compression compression) throws IOException,
       UnsupportedObjectException, NoSlavesExistException {
-    String id = UUID.randomUUID().toString();
-    synchronized (this) {
-      if (_counter++ >= _refresh_interval) {
-        refresh();
-      }
-      log.debug(String.format("[%d] submitting a new job of type %s", _counter, job.getClass()
-          .toString()));
-      OutputStream compressed_out = getCompressedStream(_out, compression, id);
-      try {
-        _pickler.dump(job, compressed_out);
-      } catch (PickleException ex) {
-        throw new UnsupportedObjectException();
-      }
-      compressed_out.close();
-      pushJob(id);
+    return submit(job, compression, null);
+  }
+
+  /**
+   * Send a new task to be processed by the VELES side, asynchronously. Get the result with yield().
+   * The jobs with the same routing key go to the same slave, so that its per-key state and caches
+   * stay warm. The keys are mapped to the slaves by consistent hashing, so when a slave joins or
+   * leaves, only its share of the keys moves. If the slave is unhealthy or overloaded, the job goes
+   * to the next one on the ring.
+   *
+   * @param job The VELES task.
+   * @param compression The compression to use during the submission.
+   * @param routingKey The key which selects the slave, or null to let the load balancer choose.
+   * @throws IOException
+   * @throws UnsupportedObjectException The specified job object is not pickleable.
+   * @throws NoSlavesExistException
+   */
+  public String submit(Object job, Compression compression, String routingKey)
+      throws IOException, UnsupportedObjectException, NoSlavesExistException {
+    if (_currentEndpoints == null || _currentEndpoints.isEmpty()) {
+      throw new NoSlavesExistException();
     }
+    refreshIfNeeded();
+    long sequence = SEQUENCE.incrementAndGet();
+    final String id = formatId(sequence);
+    log.debug(String.format("[%d] submitting a new job of type %s", _counter.get(), job
+        .getClass().toString()));
+    List<ByteBuffer> buffers = new ArrayList<>();
+    byte[] pickle = pickle(job, buffers);
+    register(id, send(sequence, job, pickle, buffers, compression, routingKey));
     return id;
   }
 
   /**
-   * Block until the result of the task previously sent with submit() is received and return it.
-   * 
-   * @param id The result identifier (obtained from submit()). If null, any result which has been
-   *        already received is returned.
-   * @return The result of the VELES processing.
-   * @throws IOException
+   * Makes the job available to yield() and, once it is completed, to take() and poll().
    */
-  public Object yield(String id) throws IOException {
-    Object res;
-    synchronized (this) {
-      if (id == null && _results.size() > 0) {
-        id = _results.keySet().iterator().next();
-      }
-      ZMQInputStream in = _pending.get(id);
-      while (!_results.containsKey(id)) {
-        StringBuilder anotherId = new StringBuilder();
-        InputStream uncompressed_in = getUncompressedStream(in, anotherId);
-        if (id == null) {
-          id = anotherId.toString();
+  private void register(final String id, CompletableFuture<Object> future) {
+    _submitted.put(id, future);
+    future.whenComplete(new BiConsumer<Object, Throwable>() {
+      @Override
+      public void accept(Object result, Throwable error) {
+        // the jobs which are already being yield()-ed are not queued
+        if (_submitted.containsKey(id)) {
+          // if yield() races with the check, take() and poll() skip the id
+          _completed.add(id);
         }
-        _results.put(anotherId.toString(), _unpickler.load(uncompressed_in));
-        uncompressed_in.close();
-        popJob(in.getSocket(), id);
       }
-      res = _results.get(id);
-      _results.remove(id);
+    });
+  }
+
+  /**
+   * Forgets the job which is being yield()-ed.
+   *
+   * @return The future of the job.
+   */
+  private CompletableFuture<Object> unregister(String id) {
+    CompletableFuture<Object> future = _submitted.remove(id);
+    if (future == null) {
+      throw new IllegalArgumentException(String.format("Unknown job %s", id));
     }
-    return res;
+    purgeCompleted();
+    return future;
   }
 
   /**
-   * Block until any task result is received and return it's identifier. It can be retrieved later
-   * via yield(<poll() result>). This method is supposed to work together with epoll()-ing of
-   * getFD() in asynchronous frameworks.
-   * 
-   * @return
-   * @throws IOException
+   * Drops the identifiers of the yield()-ed jobs from _completed once they outnumber the live ones,
+   * so that the queue is bounded even if take() and poll() are never called. Removing each of them
+   * at once would scan the queue on every yield().
    */
-  public String poll() throws IOException {
-    String id;
-    synchronized (this) {
-      StringBuilder anotherId = new StringBuilder();
-      InputStream uncompressed_in = getUncompressedStream(_in, anotherId);
-      id = anotherId.toString();
-      _results.put(id, _unpickler.load(uncompressed_in));
-      uncompressed_in.close();
+  private void purgeCompleted() {
+    if (_completed.size() <= 2 * _submitted.size() + COMPLETED_SLACK) {
+      return;
+    }
+    synchronized (_completed) {
+      List<String> ids = new ArrayList<>(_completed.size());
+      _completed.drainTo(ids);
+      for (String id : ids) {
+        if (_submitted.containsKey(id)) {
+          _completed.add(id);
+        }
+      }
+    }
+  }
+
+  /**
+   * Undoes unregister() of a job which has not been yield()-ed after all.
+   */
+  private void restore(String id, CompletableFuture<Object> future) {
+    _submitted.put(id, future);
+    // the completion could have been skipped while the job was unregistered; a duplicate entry is
+    // dropped by take() and poll()
+    if (future.isDone()) {
+      _completed.add(id);
+    }
+  }
+
+  /**
+   * Send a new task to be processed by the VELES side, asynchronously. Neither serialization nor
+   * waiting for the result blocks the other threads. Dependent stages which are not *Async() are
+   * executed on the thread which unpickles the result, a common fork-join pool worker.
+   * 
+   * @param job The VELES task.
+   * @param compression The compression to use during the submission.
+   * @return The future which is completed with the result of the VELES processing. It fails with
+   *         UnsupportedObjectException if the job is not pickleable and with
+   *         NoSlavesExistException if there is no connection to Veles.
+   */
+  public CompletableFuture<Object> submitAsync(Object job, Compression compression) {
+    return submitAsync(job, compression, null);
+  }
+
+  /**
+   * The version of submitAsync() with the routing key, see submit(Object, Compression, String).
+   */
+  public CompletableFuture<Object> submitAsync(Object job, Compression compression,
+      String routingKey) {
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    byte[] pickle;
+    List<ByteBuffer> buffers = new ArrayList<>();
+    refreshIfNeeded();
+    try {
+      pickle = pickle(job, buffers);
+      return send(SEQUENCE.incrementAndGet(), job, pickle, buffers, compression, routingKey);
+    } catch (IOException | UnsupportedObjectException e) {
+      future.completeExceptionally(e);
+      return future;
+    }
+  }
+
+  private CompletableFuture<Object> send(long id, Object job, byte[] pickle,
+      List<ByteBuffer> buffers, Compression compression, String routingKey) throws IOException {
+    ResultCache cache = _result_cache;
+    ByteBuffer key = cacheKey(cache, pickle, buffers);
+    CompletableFuture<Object> cached = lookup(cache, key);
+    if (cached != null) {
+      return cached;
+    }
+    _limiter.acquire(1, _in_flight_timeout);
+    ZMQReactor.Outgoing outgoing;
+    try {
+      outgoing = prepare(id, job, pickle, buffers, compression, routingKey);
+    } catch (IOException e) {
+      _limiter.release(1);
+      throw e;
+    }
+    cacheReply(outgoing, cache, key);
+    return releaseOnCompletion(_reactor.submit(outgoing));
+  }
+
+  /**
+   * @return The key of the job in the cache, or null if the job is not cached.
+   */
+  private ByteBuffer cacheKey(ResultCache cache, byte[] pickle, List<ByteBuffer> buffers) {
+    // the out-of-band buffers are not a part of the pickle, so such jobs are always sent
+    return cache != null && buffers.isEmpty() ? ResultCache.key(_workflowId, pickle) : null;
+  }
+
+  /**
+   * @return The future completed with the cached result, or null if there is none.
+   */
+  private static CompletableFuture<Object> lookup(ResultCache cache, ByteBuffer key) {
+    if (key == null) {
+      return null;
+    }
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    return cache.load(key, future) ? future : null;
+  }
+
+  /**
+   * Makes the reactor put the reply to the cache before the job is completed.
+   */
+  private static void cacheReply(ZMQReactor.Outgoing outgoing, ResultCache cache,
+      ByteBuffer key) {
+    if (key != null) {
+      outgoing.cache = cache;
+      outgoing.cacheKey = key;
+    }
+  }
+
+  /**
+   * @return The future which completes after the job has left the in-flight limit, so that
+   *         getInFlight() is up to date once the result is received. Cancelling it leaves the limit
+   *         at once.
+   */
+  private CompletableFuture<Object> releaseOnCompletion(final CompletableFuture<Object> future) {
+    final CompletableFuture<Object> released = new CompletableFuture<>();
+    future.whenComplete(new BiConsumer<Object, Throwable>() {
+      @Override
+      public void accept(Object result, Throwable error) {
+        _limiter.release(1);
+        if (error != null) {
+          released.completeExceptionally(error);
+        } else {
+          released.complete(result);
+        }
+      }
+    });
+    released.whenComplete(new BiConsumer<Object, Throwable>() {
+      @Override
+      public void accept(Object result, Throwable error) {
+        if (error instanceof CancellationException) {
+          future.cancel(false);
+        }
+      }
+    });
+    return released;
+  }
+
+  /**
+   * Compresses the pickle on the calling thread, so that the reactor only sends it.
+   */
+  private ZMQReactor.Outgoing prepare(long id, Object job, byte[] pickle,
+      List<ByteBuffer> buffers, Compression compression, String routingKey) throws IOException {
+    boolean adaptive = compression == Compression.Adaptive;
+    if (adaptive) {
+      compression = _adaptive.choose(job.getClass().getName(), pickle);
+    }
+    ZstdDictionary dictionary = null;
+    if (compression == Compression.ZstdDictionary) {
+      _dictionary_trainer.sample(pickle);
+      dictionary = _dictionary_trainer.getDictionary();
+      if (dictionary == null) {
+        compression = Compression.Zstd;
+      }
+    }
+    int chunkSize = _chunk_size;
+    boolean chunked =
+        chunkSize > 0 && pickle.length > chunkSize && compression != Compression.None;
+    MessageBuffer body = MessageBuffer.POOL.acquire();
+    try {
+      if (chunked) {
+        ChunkedPickle.compress(pickle, compression, dictionary, _zstd_level, chunkSize,
+            ForkJoinPool.commonPool()).writeTo(body);
+      } else {
+        OutputStream out = compress(body, compression, dictionary, _zstd_level);
+        out.write(pickle);
+        out.close();
+      }
+    } catch (IOException e) {
+      MessageBuffer.POOL.release(body);
+      throw e;
+    }
+    if (adaptive) {
+      _adaptive.report(job.getClass().getName(), compression, pickle.length, body.size());
+    }
+    return new ZMQReactor.Outgoing(id, encodeId(id, _compact_ids), body, buffers, compression,
+        dictionary, chunked, routingKey);
+  }
+
+  /**
+   * Send many tasks to be processed by the VELES side, asynchronously. Get the results with
+   * yield() or yieldAll(). It is cheaper than calling submit() for each job: the ids are reserved,
+   * the topology is checked and the jobs are handed over to the internal I/O thread once per batch.
+   * Every job goes to the slave chosen by the load balancer, so the batch is spread across them.
+   *
+   * @param jobs The VELES tasks.
+   * @param compression The compression to use during the submission.
+   * @return The identifiers of the jobs, in the same order.
+   * @throws UnsupportedObjectException One of the jobs is not pickleable. None of them is sent,
+   *         unless the batch is larger than getMaxInFlight() and is sent in parts.
+   * @throws NoSlavesExistException
+   */
+  public List<String> submitAll(Collection<?> jobs, Compression compression) throws IOException,
+      UnsupportedObjectException, NoSlavesExistException {
+    if (_currentEndpoints == null || _currentEndpoints.isEmpty()) {
+      throw new NoSlavesExistException();
+    }
+    long first = SEQUENCE.getAndAdd(jobs.size()) + 1;
+    List<CompletableFuture<Object>> futures = sendAll(first, jobs, compression);
+    List<String> ids = new ArrayList<>(jobs.size());
+    for (int i = 0; i < futures.size(); i++) {
+      String id = formatId(first + i);
+      ids.add(id);
+      register(id, futures.get(i));
+    }
+    return ids;
+  }
+
+  /**
+   * The batch version of submitAsync(), see submitAll().
+   *
+   * @return The futures which are completed with the results, in the order of jobs. If one of the
+   *         jobs is not pickleable, all of them fail with UnsupportedObjectException.
+   */
+  public List<CompletableFuture<Object>> submitAllAsync(Collection<?> jobs,
+      Compression compression) {
+    try {
+      return sendAll(SEQUENCE.getAndAdd(jobs.size()) + 1, jobs, compression);
+    } catch (IOException | UnsupportedObjectException e) {
+      List<CompletableFuture<Object>> futures = new ArrayList<>(jobs.size());
+      for (int i = 0; i < jobs.size(); i++) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        futures.add(future);
+      }
+      return futures;
+    }
+  }
+
+  /**
+   * Sends the jobs in parts which fit into getMaxInFlight(), each part waits for room separately.
+   * If a job is not pickleable, the parts before it are already sent.
+   *
+   * @param first The id of the first job, the rest are the following numbers.
+   */
+  private List<CompletableFuture<Object>> sendAll(long first, Collection<?> jobs,
+      Compression compression) throws IOException, UnsupportedObjectException {
+    int limit = _limiter.getLimit();
+    if (limit == 0 || jobs.size() <= limit) {
+      return sendBatch(first, jobs, compression);
+    }
+    List<?> list = new ArrayList<>(jobs);
+    List<CompletableFuture<Object>> futures = new ArrayList<>(jobs.size());
+    for (int i = 0; i < list.size(); i += limit) {
+      futures.addAll(sendBatch(first + i, list.subList(i, Math.min(i + limit, list.size())),
+          compression));
+    }
+    return futures;
+  }
+
+  /**
+   * @param first The id of the first job, the rest are the following numbers.
+   */
+  private List<CompletableFuture<Object>> sendBatch(long first, Collection<?> jobs,
+      Compression compression) throws IOException, UnsupportedObjectException {
+    refreshIfNeeded(jobs.size());
+    _limiter.acquire(jobs.size(), _in_flight_timeout);
+    ResultCache cache = _result_cache;
+    List<ZMQReactor.Outgoing> batch = new ArrayList<>(jobs.size());
+    // the cached results in the order of jobs, null for the jobs which are sent
+    List<CompletableFuture<Object>> futures = new ArrayList<>(jobs.size());
+    try {
+      for (Object job : jobs) {
+        long id = first + futures.size();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        byte[] pickle = pickle(job, buffers);
+        ByteBuffer key = cacheKey(cache, pickle, buffers);
+        CompletableFuture<Object> cached = lookup(cache, key);
+        futures.add(cached);
+        if (cached == null) {
+          ZMQReactor.Outgoing outgoing = prepare(id, job, pickle, buffers, compression, null);
+          cacheReply(outgoing, cache, key);
+          batch.add(outgoing);
+        }
+      }
+    } catch (IOException | UnsupportedObjectException e) {
+      _limiter.release(jobs.size());
+      for (ZMQReactor.Outgoing outgoing : batch) {
+        outgoing.release();
+      }
+      throw e;
+    }
+    _limiter.release(jobs.size() - batch.size());
+    List<CompletableFuture<Object>> sent = _reactor.submitAll(batch);
+    for (int i = 0, j = 0; i < futures.size(); i++) {
+      if (futures.get(i) == null) {
+        futures.set(i, releaseOnCompletion(sent.get(j++)));
+      }
+    }
+    return futures;
+  }
+
+  /**
+   * Block until the result of the task previously sent with submit() is received and return it.
+   * 
+   * @param id The result identifier (obtained from submit()). If null, the first received result
+   *        is returned.
+   * @return The result of the VELES processing.
+   * @throws IOException
+   */
+  public Object yield(String id) throws IOException {
+    if (id == null) {
+      id = take();
+    }
+    return await(unregister(id));
+  }
+
+  /**
+   * Block until the result of the task previously sent with submit() is received, but not longer
+   * than the specified time, and return it.
+   *
+   * @param id The result identifier (obtained from submit()). If null, the first received result
+   *        is returned.
+   * @param timeout The time to wait.
+   * @param unit The unit of the timeout.
+   * @return The result of the VELES processing.
+   * @throws JobTimeoutException The result was not received in time. The job is forgotten, its
+   *         late result is discarded.
+   * @throws IOException
+   */
+  public Object yield(String id, long timeout, TimeUnit unit) throws IOException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    if (id == null) {
+      id = poll(timeout, unit);
+      if (id == null) {
+        throw new JobTimeoutException("No job was completed in time");
+      }
+    }
+    CompletableFuture<Object> future = unregister(id);
+    try {
+      return await(future, deadline - System.nanoTime());
+    } catch (TimeoutException e) {
+      future.cancel(false);
+      throw new JobTimeoutException(String.format("Job %s missed the deadline", id));
+    }
+  }
+
+  /**
+   * Block until the results of all the specified tasks are received and return them.
+   *
+   * @param ids The result identifiers (obtained from submitAll() or submit()).
+   * @return The results of the VELES processing, in the order of ids.
+   * @throws IOException The first of the failed jobs, in the order of ids, failed with it. The
+   *         results of the other jobs are discarded.
+   */
+  public List<Object> yieldAll(List<String> ids) throws IOException {
+    Set<String> unique = new HashSet<>(ids.size() * 2);
+    for (String id : ids) {
+      if (id == null) {
+        throw new IllegalArgumentException("Null job id");
+      }
+      if (!unique.add(id)) {
+        throw new IllegalArgumentException(String.format("Duplicate job %s", id));
+      }
+    }
+    List<CompletableFuture<Object>> futures = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      CompletableFuture<Object> future = _submitted.remove(id);
+      if (future == null) {
+        // another thread has taken the job; give the others back
+        for (int i = 0; i < futures.size(); i++) {
+          restore(ids.get(i), futures.get(i));
+        }
+        throw new IllegalArgumentException(String.format("Unknown job %s", id));
+      }
+      futures.add(future);
+    }
+    purgeCompleted();
+    try {
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      // reported below, in the order of ids
+    }
+    List<Object> results = new ArrayList<>(ids.size());
+    for (CompletableFuture<Object> future : futures) {
+      results.add(await(future));
+    }
+    return results;
+  }
+
+  /**
+   * Block until any task result is received and return its identifier. The results are returned
+   * in the order of completion, regardless of the slave which sent them and of the order of
+   * submission. The result can be retrieved later via yield(<take() result>) without blocking.
+   *
+   * @return The identifier of the completed job.
+   * @throws IOException
+   */
+  public String take() throws IOException {
+    try {
+      String id;
+      do {
+        id = _completed.take();
+      } while (!_submitted.containsKey(id));
+      return id;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * The same as take().
+   */
+  public String poll() throws IOException {
+    return take();
+  }
+
+  /**
+   * Wait up to the specified time until any task result is received and return its identifier,
+   * see take().
+   *
+   * @return The identifier of the completed job or null if none was completed in time.
+   * @throws IOException
+   */
+  public String poll(long timeout, TimeUnit unit) throws IOException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    try {
+      String id;
+      do {
+        id = _completed.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (id == null) {
+          return null;
+        }
+      } while (!_submitted.containsKey(id));
+      return id;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
     }
-    return id;
   }
 
   /**
@@ -455,14 +1430,177 @@ public class VelesManager {
   public Object execute(Object job, Compression compression) throws IOException,
       UnsupportedObjectException, NoSlavesExistException {
     String id = submit(job, compression);
-    return yield(id);
+    return this.yield(id);
+  }
+
+  /**
+   * Scatter-gather version of execute() for the jobs which are parallel over their inputs: the
+   * items are split into the shards of shardSize, which are sent in one batch and spread across
+   * all the slaves, and the results are gathered back in order.
+   *
+   * @param items The inputs. Each shard is sent as a list of them.
+   * @param shardSize The maximal number of items in a shard.
+   * @param compression The compression to use during the submission.
+   * @return The concatenation of the shard results, in the order of shards. The shard result which
+   *         is a list or an array is expanded, any other object is added as is.
+   * @throws UnsupportedObjectException One of the items is not pickleable. No shard is sent,
+   *         unless there are more shards than getMaxInFlight() and they are sent in parts.
+   * @throws NoSlavesExistException
+   */
+  public List<Object> executeSharded(List<?> items, int shardSize, Compression compression)
+      throws IOException, UnsupportedObjectException, NoSlavesExistException {
+    return executeSharded(items, shardSize, compression, null);
+  }
+
+  /**
+   * The version of executeSharded() which streams the partial results.
+   *
+   * @param onShard Called with the index of the first item of the shard and the shard result as
+   *        soon as each shard is finished, in the order of completion, on the thread which
+   *        unpickles the result. May be null.
+   */
+  public List<Object> executeSharded(List<?> items, int shardSize, Compression compression,
+      final BiConsumer<Integer, Object> onShard) throws IOException, UnsupportedObjectException,
+      NoSlavesExistException {
+    if (shardSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    if (_currentEndpoints == null || _currentEndpoints.isEmpty()) {
+      throw new NoSlavesExistException();
+    }
+    List<List<?>> shards = new ArrayList<>((items.size() + shardSize - 1) / shardSize);
+    for (int i = 0; i < items.size(); i += shardSize) {
+      shards.add(new ArrayList<>(items.subList(i, Math.min(i + shardSize, items.size()))));
+    }
+    List<CompletableFuture<Object>> futures =
+        sendAll(SEQUENCE.getAndAdd(shards.size()) + 1, shards, compression);
+    if (onShard != null) {
+      for (int i = 0; i < futures.size(); i++) {
+        final int offset = i * shardSize;
+        futures.get(i).thenAccept(new Consumer<Object>() {
+          @Override
+          public void accept(Object result) {
+            onShard.accept(offset, result);
+          }
+        });
+      }
+    }
+    List<Object> results = new ArrayList<>(items.size());
+    try {
+      for (CompletableFuture<Object> future : futures) {
+        expand(await(future), results);
+      }
+    } catch (IOException e) {
+      // the replies to the rest of the shards are discarded
+      for (CompletableFuture<Object> future : futures) {
+        future.cancel(false);
+      }
+      throw e;
+    }
+    return results;
+  }
+
+  /**
+   * Adds the elements of the shard result which is a collection or an array, e.g. float[] of an
+   * unpickled array.array, or the result itself otherwise.
+   */
+  static void expand(Object result, List<Object> results) {
+    if (result instanceof Collection) {
+      results.addAll((Collection<?>) result);
+    } else if (result instanceof Object[]) {
+      results.addAll(Arrays.asList((Object[]) result));
+    } else if (result != null && result.getClass().isArray()) {
+      int length = Array.getLength(result);
+      for (int i = 0; i < length; i++) {
+        results.add(Array.get(result, i));
+      }
+    } else {
+      results.add(result);
+    }
   }
 
   private static final byte PICKLE_BEGIN[] = {'v', 'p', 'b'};
+  // the pickle is preceded by the out-of-band buffers
+  private static final byte OUT_OF_BAND_BEGIN[] = {'v', 'p', 'o'};
+  private static final Compression[] COMPRESSIONS = Compression.values();
+  // PICKLE_BEGIN followed by the compression code, for each compression
+  private static final byte[][] MARKS = new byte[COMPRESSIONS.length][];
+  // the same for OUT_OF_BAND_BEGIN
+  private static final byte[][] OUT_OF_BAND_MARKS = new byte[COMPRESSIONS.length][];
+  // the length of the textual job identifier, a UUID string
+  static final int ID_LENGTH = 36;
+  // the length of the binary job identifier, a big-endian UUID
+  static final int COMPACT_ID_LENGTH = 16;
+  // the random half of the job identifiers, the same for all the jobs of this process
+  private static final long SESSION = UUID.randomUUID().getMostSignificantBits();
+  // the sequential half of the job identifiers
+  private static final AtomicLong SEQUENCE = new AtomicLong();
+  // the flag in the compression code of ChunkedPickle messages
+  private static final int CHUNKED = 0x80;
+  static {
+    for (Compression compression : COMPRESSIONS) {
+      MARKS[compression.ordinal()] = getMark(PICKLE_BEGIN, compression);
+      OUT_OF_BAND_MARKS[compression.ordinal()] = getMark(OUT_OF_BAND_BEGIN, compression);
+    }
+  }
+
+  private static byte[] getMark(byte[] begin, Compression compression) {
+    byte mark[] = new byte[begin.length + 1];
+    System.arraycopy(begin, 0, mark, 0, begin.length);
+    mark[mark.length - 1] = (byte) compression.ordinal();
+    return mark;
+  }
+  private static final LZMA2Options LZMA2_OPTIONS = new LZMA2Options();
+
+  /**
+   * The buffers of COMPRESSION_BUFFER_SIZE, shared by all the codecs.
+   */
+  static final ObjectPool<byte[]> COMPRESSION_BUFFERS = new ObjectPool<byte[]>() {
+    @Override
+    protected byte[] create() {
+      return new byte[COMPRESSION_BUFFER_SIZE];
+    }
+  };
+
+  /**
+   * Buffers the writes with a pooled buffer and ignores flush() calls, so that the codec
+   * underneath does not terminate blocks prematurely.
+   */
+  private static class UnflushableBufferedOutputStream extends FilterOutputStream {
+    private byte[] _buf = COMPRESSION_BUFFERS.acquire();
+    private int _count = 0;
 
-  private static class UnflushableBufferedOutputStream extends BufferedOutputStream {
-    public UnflushableBufferedOutputStream(OutputStream out, int size) {
-      super(out, size);
+    public UnflushableBufferedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    private void flushBuffer() throws IOException {
+      if (_count > 0) {
+        out.write(_buf, 0, _count);
+        _count = 0;
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (_count == _buf.length) {
+        flushBuffer();
+      }
+      _buf[_count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len >= _buf.length) {
+        flushBuffer();
+        out.write(b, off, len);
+        return;
+      }
+      if (len > _buf.length - _count) {
+        flushBuffer();
+      }
+      System.arraycopy(b, off, _buf, _count, len);
+      _count += len;
     }
 
     @Override
@@ -470,58 +1608,335 @@ public class VelesManager {
 
     @Override
     public void close() throws IOException {
-      super.flush();
-      super.close();
+      if (_buf == null) {
+        return;
+      }
+      try {
+        flushBuffer();
+      } finally {
+        COMPRESSION_BUFFERS.release(_buf);
+        _buf = null;
+        out.close();
+      }
     }
   }
 
-  private static OutputStream getCompressedStream(OutputStream output, Compression compression,
+  static OutputStream getCompressedStream(OutputStream output, Compression compression,
       String id) throws IOException {
-    output.write(id.getBytes());
-    byte mark[] = new byte[PICKLE_BEGIN.length + 1];
-    System.arraycopy(PICKLE_BEGIN, 0, mark, 0, PICKLE_BEGIN.length);
-    mark[mark.length - 1] = (byte) compression.ordinal();
-    output.write(mark);
+    return getCompressedStream(output, compression, id, Collections.<ByteBuffer>emptyList());
+  }
+
+  static OutputStream getCompressedStream(OutputStream output, Compression compression,
+      String id, List<ByteBuffer> buffers) throws IOException {
+    return getCompressedStream(output, compression, id, buffers, null, false, false);
+  }
+
+  /**
+   * Writes the message header and the out-of-band buffers, if any, and returns the stream to write
+   * the pickle to. The buffers are written as [count][size]...[size][data]...[data], the numbers
+   * are 32-bit little-endian. ZstdDictionary compression then writes [dictionary id][size][data],
+   * where size is 0 and data is absent if the receiver already has the dictionary.
+   *
+   * @param dictionary The dictionary for ZstdDictionary compression.
+   * @param embed Whether to send the dictionary itself.
+   * @param chunked Whether the pickle is sent as {@link ChunkedPickle}. If true, the returned
+   *        stream does not compress.
+   */
+  static OutputStream getCompressedStream(OutputStream output, Compression compression,
+      String id, List<ByteBuffer> buffers, ZstdDictionary dictionary, boolean embed,
+      boolean chunked) throws IOException {
+    writeHeader(output, compression, id.getBytes(), buffers, dictionary, embed, chunked);
+    if (chunked) {
+      return output;
+    }
+    return compress(output, compression, dictionary);
+  }
+
+  /**
+   * Writes the message header described in getCompressedStream(), which the compressed pickle
+   * must follow.
+   */
+  static void writeHeader(OutputStream output, Compression compression, byte[] id,
+      List<ByteBuffer> buffers, ZstdDictionary dictionary, boolean embed, boolean chunked)
+      throws IOException {
+    if (compression == Compression.ZstdDictionary && dictionary == null) {
+      throw new IllegalArgumentException("ZstdDictionary compression requires a dictionary");
+    }
+    if (compression == Compression.Adaptive) {
+      throw new IllegalArgumentException("Adaptive compression must be resolved before sending");
+    }
+    output.write(id);
+    byte[] mark = (buffers.isEmpty() ? MARKS : OUT_OF_BAND_MARKS)[compression.ordinal()];
+    output.write(mark, 0, mark.length - 1);
+    output.write(mark[mark.length - 1] | (chunked ? CHUNKED : 0));
+    if (!buffers.isEmpty()) {
+      writeInt(output, buffers.size());
+      for (ByteBuffer buffer : buffers) {
+        writeInt(output, buffer.remaining());
+      }
+      for (ByteBuffer buffer : buffers) {
+        writeBuffer(output, buffer.duplicate());
+      }
+    }
+    if (compression == Compression.ZstdDictionary) {
+      writeInt(output, dictionary.id);
+      if (embed) {
+        writeInt(output, dictionary.getData().length);
+        output.write(dictionary.getData());
+      } else {
+        writeInt(output, 0);
+      }
+    }
+  }
+
+  static OutputStream compress(OutputStream output, Compression compression,
+      ZstdDictionary dictionary) throws IOException {
+    return compress(output, compression, dictionary, Zstd.defaultCompressionLevel());
+  }
+
+  /**
+   * @param zstdLevel The level of Zstd compression.
+   * @return The stream which compresses the data with the codec and writes it to the output.
+   */
+  static OutputStream compress(OutputStream output, Compression compression,
+      ZstdDictionary dictionary, int zstdLevel) throws IOException {
     switch (compression) {
       case None:
         return output;
       case Gzip:
-        return new GZIPOutputStream(output, COMPRESSION_BUFFER_SIZE);
+        return new PooledGZIPOutputStream(output, COMPRESSION_BUFFERS);
       case Snappy:
-        return new UnflushableBufferedOutputStream(new SnappyFramedOutputStream(output),
-            COMPRESSION_BUFFER_SIZE);
+        // snappy-java takes its block buffers from DefaultPoolFactory.getDefaultPool()
+        return new UnflushableBufferedOutputStream(new SnappyFramedOutputStream(output));
       case Lzma2:
-        return new UnflushableBufferedOutputStream(new XZOutputStream(output, new LZMA2Options()),
-            COMPRESSION_BUFFER_SIZE);
+        return new UnflushableBufferedOutputStream(new XZOutputStream(output, LZMA2_OPTIONS,
+            BasicArrayCache.getInstance()));
+      case Zstd:
+        return new UnflushableBufferedOutputStream(new ZstdOutputStreamNoFinalizer(output,
+            RecyclingBufferPool.INSTANCE, zstdLevel));
+      case Lz4:
+        return new UnflushableBufferedOutputStream(new LZ4FrameOutputStream(output,
+            LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB));
+      case ZstdDictionary:
+        return new UnflushableBufferedOutputStream(new ZstdOutputStreamNoFinalizer(output,
+            RecyclingBufferPool.INSTANCE).setDict(dictionary.getCompress()));
       default:
         throw new UnsupportedOperationException();
     }
   }
 
-  private static InputStream getUncompressedStream(InputStream input, StringBuilder id)
+  static InputStream getUncompressedStream(InputStream input, StringBuilder id)
       throws IOException {
-    byte[] msgId = new byte[36];
-    input.read(msgId);
-    id.append(new String(msgId));
-    byte[] mark = new byte[PICKLE_BEGIN.length + 1];
-    input.read(mark);
-    for (int i = 0; i < PICKLE_BEGIN.length; i++) {
-      if (mark[i] != PICKLE_BEGIN[i]) {
+    return getUncompressedStream(input, id, null);
+  }
+
+  /**
+   * Reads the message header and the out-of-band buffers, if any, and returns the stream to read
+   * the pickle from.
+   *
+   * @param buffers Receives the out-of-band buffers. If null, they are not expected.
+   */
+  static InputStream getUncompressedStream(InputStream input, StringBuilder id,
+      List<ByteBuffer> buffers) throws IOException {
+    byte[] head = new byte[COMPACT_ID_LENGTH + PICKLE_BEGIN.length + 1];
+    readFully(input, head);
+    byte[] mark;
+    if (isCompactId(head, head.length)) {
+      id.append(new UUID(getLong(head, 0), getLong(head, 8)));
+      mark = Arrays.copyOfRange(head, COMPACT_ID_LENGTH, head.length);
+    } else {
+      byte[] tail = new byte[ID_LENGTH - head.length];
+      readFully(input, tail);
+      id.append(new String(head)).append(new String(tail));
+      mark = new byte[PICKLE_BEGIN.length + 1];
+      readFully(input, mark);
+    }
+    int last = PICKLE_BEGIN.length - 1;
+    boolean outOfBand = mark[last] == OUT_OF_BAND_BEGIN[last];
+    byte[] begin = outOfBand ? OUT_OF_BAND_BEGIN : PICKLE_BEGIN;
+    for (int i = 0; i < begin.length; i++) {
+      if (mark[i] != begin[i]) {
         throw new IOException("Invalid stream format");
       }
     }
-    Compression format = Compression.values()[mark[mark.length - 1]];
+    if (outOfBand) {
+      if (buffers == null) {
+        throw new IOException("Unexpected out-of-band buffers");
+      }
+      int[] sizes = new int[readInt(input)];
+      for (int i = 0; i < sizes.length; i++) {
+        sizes[i] = readInt(input);
+      }
+      for (int size : sizes) {
+        byte[] data = new byte[size];
+        readFully(input, data);
+        buffers.add(ByteBuffer.wrap(data));
+      }
+    }
+    int code = mark[mark.length - 1] & 0xff;
+    boolean chunked = (code & CHUNKED) != 0;
+    code &= ~CHUNKED;
+    if (code >= Compression.Adaptive.ordinal()) {
+      throw new IOException("Invalid stream format");
+    }
+    Compression format = COMPRESSIONS[code];
+    ZstdDictionary dictionary = null;
+    if (format == Compression.ZstdDictionary) {
+      int dictionaryId = readInt(input);
+      byte[] data = new byte[readInt(input)];
+      readFully(input, data);
+      dictionary = ZstdDictionary.get(dictionaryId);
+      if (dictionary == null && data.length > 0) {
+        dictionary =
+            ZstdDictionary.register(new ZstdDictionary(data, Zstd.defaultCompressionLevel()));
+      }
+      if (dictionary == null) {
+        throw new IOException(String.format("Unknown Zstd dictionary %08x", dictionaryId));
+      }
+    }
+    if (chunked) {
+      return ChunkedPickle.read(input, format, dictionary, ForkJoinPool.commonPool());
+    }
+    return decompress(input, format, dictionary);
+  }
+
+  /**
+   * @return The stream which decompresses the data of the input with the codec.
+   */
+  static InputStream decompress(InputStream input, Compression format, ZstdDictionary dictionary)
+      throws IOException {
     switch (format) {
       case None:
         return input;
       case Gzip:
-        return new GZIPInputStream(input);
+        return new PooledGZIPInputStream(input, COMPRESSION_BUFFERS);
       case Snappy:
         return new SnappyFramedInputStream(input);
       case Lzma2:
-        return new XZInputStream(input);
+        return new XZInputStream(input, -1, BasicArrayCache.getInstance());
+      case Zstd:
+        return new ZstdInputStreamNoFinalizer(input, RecyclingBufferPool.INSTANCE);
+      case Lz4:
+        return new LZ4FrameInputStream(input);
+      case ZstdDictionary:
+        return new ZstdInputStreamNoFinalizer(input, RecyclingBufferPool.INSTANCE)
+            .setDict(dictionary.getDecompress());
       default:
         throw new UnsupportedOperationException();
     }
   }
+  /**
+   * @return The textual form of the job identifier, which submit() returns.
+   */
+  static String formatId(long id) {
+    return new UUID(SESSION, id).toString();
+  }
+
+  /**
+   * @param compact Whether to use the binary form instead of the textual one.
+   * @return The job identifier as it is written to the message.
+   */
+  static byte[] encodeId(long id, boolean compact) {
+    if (!compact) {
+      return formatId(id).getBytes();
+    }
+    return ByteBuffer.allocate(COMPACT_ID_LENGTH).putLong(SESSION).putLong(id).array();
+  }
+
+  /**
+   * Parses the job identifier which the message starts with, in either form, without allocating.
+   *
+   * @return The sequential part of the identifier, or 0 if the message does not belong to this
+   *         process.
+   */
+  static long decodeId(byte[] message, int size) {
+    long session, id;
+    if (isCompactId(message, size)) {
+      session = getLong(message, 0);
+      id = getLong(message, 8);
+    } else if (size >= ID_LENGTH) {
+      // xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx
+      long[] parts = {parseHex(message, 0, 8), parseHex(message, 9, 4), parseHex(message, 14, 4),
+          parseHex(message, 19, 4), parseHex(message, 24, 12)};
+      for (long part : parts) {
+        if (part < 0) {
+          return 0;
+        }
+      }
+      session = parts[0] << 32 | parts[1] << 16 | parts[2];
+      id = parts[3] << 48 | parts[4];
+    } else {
+      return 0;
+    }
+    return session == SESSION ? id : 0;
+  }
+
+  /**
+   * The textual identifiers consist of hex digits and dashes, so the binary one is recognized by
+   * the message mark right after it.
+   */
+  private static boolean isCompactId(byte[] message, int size) {
+    return size >= COMPACT_ID_LENGTH + 2 && message[COMPACT_ID_LENGTH] == PICKLE_BEGIN[0]
+        && message[COMPACT_ID_LENGTH + 1] == PICKLE_BEGIN[1];
+  }
+
+  private static long getLong(byte[] data, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = value << 8 | (data[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  /**
+   * @return The value of the hex digits or -1 if there is an invalid one.
+   */
+  private static long parseHex(byte[] data, int offset, int length) {
+    long value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      int digit = Character.digit(data[i], 16);
+      if (digit < 0) {
+        return -1;
+      }
+      value = value << 4 | digit;
+    }
+    return value;
+  }
+
+  static void writeInt(OutputStream output, int value) throws IOException {
+    output.write(value);
+    output.write(value >>> 8);
+    output.write(value >>> 16);
+    output.write(value >>> 24);
+  }
+
+  static int readInt(InputStream input) throws IOException {
+    byte[] bytes = new byte[4];
+    readFully(input, bytes);
+    return (bytes[0] & 0xff) | (bytes[1] & 0xff) << 8 | (bytes[2] & 0xff) << 16
+        | (bytes[3] & 0xff) << 24;
+  }
+
+  static void readFully(InputStream input, byte[] data) throws IOException {
+    for (int pos = 0; pos < data.length;) {
+      int read = input.read(data, pos, data.length - pos);
+      if (read <= 0) {
+        throw new IOException("Invalid stream format");
+      }
+      pos += read;
+    }
+  }
+
+  private static void writeBuffer(OutputStream output, ByteBuffer buffer) throws IOException {
+    if (output instanceof ZMQOutputStream) {
+      // direct buffers go to the socket straight from the native memory
+      ((ZMQOutputStream) output).write(buffer);
+    } else if (buffer.hasArray()) {
+      output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    } else {
+      byte[] data = new byte[buffer.remaining()];
+      buffer.get(data);
+      output.write(data);
+    }
+  }
 }
@@ -0,0 +1,78 @@
+package com.samsung.veles.mastodon;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Smooth weighted round robin: each connection receives the share of jobs proportional to the
+ * weight of its endpoint, and the picks are interleaved as evenly as possible.
+ */
+public class WeightedBalancer implements LoadBalancer {
+  private final Map<ZMQEndpoint, Double> _weights = new ConcurrentHashMap<>();
+  // accessed only from the I/O thread
+  private final Map<ZMQEndpoint, Double> _current = new HashMap<>();
+  private final double _defaultWeight;
+
+  public WeightedBalancer() {
+    this(1);
+  }
+
+  /**
+   * @param defaultWeight The weight of the endpoints which were not assigned one explicitly.
+   */
+  public WeightedBalancer(double defaultWeight) {
+    if (defaultWeight <= 0) {
+      throw new IllegalArgumentException();
+    }
+    _defaultWeight = defaultWeight;
+  }
+
+  /**
+   * Assigns the relative weight to the endpoint. Can be called from any thread.
+   *
+   * @param endpoint The slave endpoint.
+   * @param weight Positive number.
+   */
+  public void setWeight(ZMQEndpoint endpoint, double weight) {
+    if (weight <= 0) {
+      throw new IllegalArgumentException();
+    }
+    _weights.put(endpoint, weight);
+  }
+
+  public double getWeight(ZMQEndpoint endpoint) {
+    Double weight = _weights.get(endpoint);
+    return weight != null ? weight : _defaultWeight;
+  }
+
+  @Override
+  public ZMQConnection choose(List<ZMQConnection> connections) {
+    ZMQConnection best = null;
+    double bestWeight = 0, total = 0;
+    for (ZMQConnection connection : connections) {
+      double weight = getWeight(connection.endpoint);
+      Double current = _current.get(connection.endpoint);
+      current = (current != null ? current : 0) + weight;
+      _current.put(connection.endpoint, current);
+      total += weight;
+      if (best == null || current > bestWeight) {
+        best = connection;
+        bestWeight = current;
+      }
+    }
+    _current.put(best.endpoint, bestWeight - total);
+    return best;
+  }
+
+  /**
+   * Forgets the endpoints which have gone away. The connections missing from choose() only because
+   * their windows are full keep their credit.
+   */
+  @Override
+  public void setEndpoints(List<ZMQEndpoint> endpoints) {
+    _current.keySet().retainAll(new HashSet<>(endpoints));
+  }
+}
@@ -0,0 +1,187 @@
+package com.samsung.veles.mastodon;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * ZeroMQ DEALER socket connected to a single Veles slave, together with its streams. Instances
+ * belong to the {@link ZMQReactor} thread and must not be used from anywhere else.
+ */
+public class ZMQConnection implements IZMQStream {
+  private final ZMQ.Socket _socket;
+  private final long _fd;
+  private int _outstanding = 0;
+  private boolean _retired = false;
+  // System.nanoTime() of the last reply, or of the first job sent since the connection was idle
+  private long _last_activity;
+  // System.nanoTime() when the slave was last found silent for too long
+  private long _last_stall;
+  private AdaptiveWindow _window;
+  private EndpointHealth _health = new EndpointHealth();
+  // ids of the Zstd dictionaries which were sent through this connection
+  private final Set<Integer> _dictionaries = new HashSet<>();
+
+  /**
+   * The slave endpoint this connection talks to.
+   */
+  public final ZMQEndpoint endpoint;
+  public final ZMQInputStream in;
+  public final ZMQOutputStream out;
+
+  public ZMQConnection(ZMQ.Context context, ZMQEndpoint endpoint) {
+    this(context, endpoint, ZMQOutputStream.DEFAULT_FRAME_SIZE);
+  }
+
+  /**
+   * @param frameSize The maximal size of the frame the outgoing small writes are gathered into.
+   */
+  public ZMQConnection(ZMQ.Context context, ZMQEndpoint endpoint, int frameSize) {
+    this.endpoint = endpoint;
+    _socket = context.socket(ZMQ.DEALER);
+    _socket.connect(endpoint.uri);
+    _fd = _socket.getFD();
+    in = new ZMQInputStream(_socket);
+    out = new ZMQOutputStream(_socket, frameSize);
+  }
+
+  /**
+   * @return The file descriptor of the underlying socket, cached at the moment of creation so that
+   *         it can be safely queried from any thread.
+   */
+  public long getFD() {
+    return _fd;
+  }
+
+  /**
+   * @return The number of jobs which were sent through this connection and are not answered yet.
+   */
+  public int getOutstanding() {
+    return _outstanding;
+  }
+
+  /**
+   * @return The limit of the outstanding jobs, or null if there is none.
+   */
+  public AdaptiveWindow getWindow() {
+    return _window;
+  }
+
+  public void setWindow(AdaptiveWindow window) {
+    _window = window;
+  }
+
+  /**
+   * @return Whether one more job may be sent without exceeding the window.
+   */
+  public boolean hasRoom() {
+    return _window == null || _outstanding < _window.getLimit();
+  }
+
+  public void acquire() {
+    if (_outstanding++ == 0) {
+      _last_activity = System.nanoTime();
+    }
+  }
+
+  public void release() {
+    _outstanding--;
+  }
+
+  /**
+   * Marks the connection as no longer eligible for new jobs. It stays open until every outstanding
+   * reply is received.
+   */
+  public void retire() {
+    _retired = true;
+  }
+
+  /**
+   * Makes the retired connection eligible for new jobs again.
+   */
+  public void revive() {
+    _retired = false;
+    // the slave came back to the master, possibly restarted
+    clearDictionaries();
+  }
+
+  public boolean isRetired() {
+    return _retired;
+  }
+
+  /**
+   * @return System.nanoTime() of the last reply, or of the first job sent since the connection
+   *         had nothing outstanding.
+   */
+  public long getLastActivity() {
+    return _last_activity;
+  }
+
+  /**
+   * Records that the slave replied or was checked.
+   */
+  public void touch(long now) {
+    _last_activity = now;
+  }
+
+  /**
+   * @return System.nanoTime() since which the silence of the slave is counted: the last activity
+   *         or the last time it was found stalled, whichever is later.
+   */
+  public long getLastStall() {
+    return _last_stall - _last_activity > 0 ? _last_stall : _last_activity;
+  }
+
+  /**
+   * Records that the slave was found silent for too long.
+   */
+  public void stall(long now) {
+    _last_stall = now;
+  }
+
+  /**
+   * @return The health of the endpoint, which outlives the connection.
+   */
+  public EndpointHealth getHealth() {
+    return _health;
+  }
+
+  public void setHealth(EndpointHealth health) {
+    _health = health;
+  }
+
+  /**
+   * @return Whether the Zstd dictionary was already sent through this connection.
+   */
+  public boolean hasDictionary(int id) {
+    return _dictionaries.contains(id);
+  }
+
+  public void addDictionary(int id) {
+    _dictionaries.add(id);
+  }
+
+  /**
+   * Makes the dictionaries be sent again, e.g. because the slave could have been restarted behind
+   * the same endpoint.
+   */
+  public void clearDictionaries() {
+    _dictionaries.clear();
+  }
+
+  public void close() {
+    _socket.close();
+  }
+
+  @Override
+  public Socket getSocket() {
+    return _socket;
+  }
+
+  @Override
+  public String toString() {
+    return endpoint.toString();
+  }
+}
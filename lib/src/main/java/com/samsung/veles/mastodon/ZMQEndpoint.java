@@ -26,6 +26,11 @@ public class ZMQEndpoint {
     }
   }
 
+  @Override
+  public int hashCode() {
+    return (host.hashCode() * 31 + uri.hashCode()) * 31 + type.hashCode();
+  }
+
   /**
    * The remote host name.
    */
@@ -6,6 +6,11 @@ import java.io.InputStream;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Socket;
 
+/**
+ * Reads a multipart ZeroMQ message as a continuous stream. The frames are received straight into
+ * the caller's arrays, and the part which does not fit is kept as a separate array until the next
+ * read.
+ */
 public class ZMQInputStream extends InputStream implements IZMQStream {
   private final ZMQ.Socket _socket;
   private byte[] _unread;
@@ -23,7 +28,7 @@ public class ZMQInputStream extends InputStream implements IZMQStream {
     if (res == -1) {
       return -1;
     }
-    return _int_buf[0];
+    return _int_buf[0] & 0xff;
   }
 
   @Override
@@ -67,6 +72,27 @@ public class ZMQInputStream extends InputStream implements IZMQStream {
     return len - pending;
   }
 
+  /**
+   * Reads the rest of the current message, or the next message if the current one has ended.
+   *
+   * @param out Receives the data.
+   */
+  void readMessage(MessageBuffer out) {
+    boolean started = false;
+    if (_unread != null) {
+      out.write(_unread, _unread_pos, _unread.length - _unread_pos);
+      _unread_pos = 0;
+      _unread = null;
+      started = true;
+    }
+    while (!started || !_new_message) {
+      byte[] frame = _socket.recv(0);
+      _new_message = !_socket.hasReceiveMore();
+      out.write(frame, 0, frame.length);
+      started = true;
+    }
+  }
+
   @Override
   public void close() {
     _unread_pos = 0;
@@ -75,6 +101,7 @@ public class ZMQInputStream extends InputStream implements IZMQStream {
     while (_socket.hasReceiveMore()) {
       _socket.recv(tmp, 0, 0, 0);
     }
+    _new_message = true;
   }
 
   @Override
@@ -2,37 +2,125 @@ package com.samsung.veles.mastodon;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Socket;
 
+/**
+ * Sends the written data as a multipart ZeroMQ message. Small writes are gathered into frames of
+ * up to getFrameSize() bytes, writes which are larger than that are sent as is, without copying.
+ * close() terminates the message, after which the stream can be used for the next one.
+ */
 public class ZMQOutputStream extends OutputStream implements IZMQStream {
+  public static final int DEFAULT_FRAME_SIZE = 64 * 1024;
   private static final byte PICKLE_END[] = {'v', 'p', 'e'};
   private final ZMQ.Socket _socket;
+  private final byte[] _frame;
+  private int _count = 0;
+  private long _written = 0;
 
   public ZMQOutputStream(ZMQ.Socket socket) {
+    this(socket, DEFAULT_FRAME_SIZE);
+  }
+
+  /**
+   * @param socket The socket to send the frames to.
+   * @param frameSize The maximal size of the frame gathered from small writes.
+   */
+  public ZMQOutputStream(ZMQ.Socket socket, int frameSize) {
+    if (frameSize < 1) {
+      throw new IllegalArgumentException();
+    }
     _socket = socket;
+    _frame = new byte[frameSize];
+  }
+
+  public int getFrameSize() {
+    return _frame.length;
+  }
+
+  /**
+   * @return The total number of bytes written to the stream, excluding the end marks.
+   */
+  public long getBytesWritten() {
+    return _written;
   }
 
   @Override
   public void write(int b) throws IOException {
-    byte[] msg = new byte[] {(byte) b};
-    write(msg, 0, 1);
+    if (_count == _frame.length) {
+      flush();
+    }
+    _frame[_count++] = (byte) b;
+    _written++;
   }
 
   @Override
-  public void write(byte[] b) {
+  public void write(byte[] b) throws IOException {
     write(b, 0, b.length);
   }
 
   @Override
-  public void write(byte[] b, int off, int len) {
-    _socket.send(b, off, len, ZMQ.NOBLOCK | ZMQ.SNDMORE);
+  public void write(byte[] b, int off, int len) throws IOException {
+    _written += len;
+    if (len > _frame.length - _count) {
+      flush();
+      if (len >= _frame.length) {
+        check(_socket.send(b, off, len, ZMQ.NOBLOCK | ZMQ.SNDMORE));
+        return;
+      }
+    }
+    System.arraycopy(b, off, _frame, _count, len);
+    _count += len;
+  }
+
+  /**
+   * Sends the remaining bytes of the buffer as a separate frame. Direct buffers are sent straight
+   * from the native memory.
+   *
+   * @param buffer The data to send.
+   * @throws IOException The socket refused the frame.
+   */
+  public void write(ByteBuffer buffer) throws IOException {
+    if (buffer.hasArray()) {
+      write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
+      return;
+    }
+    flush();
+    int size = buffer.remaining();
+    _written += size;
+    check(_socket.sendByteBuffer(buffer, ZMQ.NOBLOCK | ZMQ.SNDMORE) == size);
+    buffer.position(buffer.limit());
+  }
+
+  /**
+   * Sends the gathered data as a frame, the message is not terminated.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (_count > 0) {
+      int count = _count;
+      _count = 0;
+      check(_socket.send(_frame, 0, count, ZMQ.NOBLOCK | ZMQ.SNDMORE));
+    }
   }
 
   @Override
-  public void close() {
-    _socket.send(PICKLE_END, ZMQ.NOBLOCK);
+  public void close() throws IOException {
+    flush();
+    check(_socket.send(PICKLE_END, ZMQ.NOBLOCK));
+  }
+
+  /**
+   * @param sent The result of the non-blocking send.
+   * @throws IOException The frame was not queued, e.g. the high water mark is reached.
+   */
+  private void check(boolean sent) throws IOException {
+    if (!sent) {
+      throw new IOException("The socket refused the frame, the message is not sent");
+    }
   }
 
   @Override
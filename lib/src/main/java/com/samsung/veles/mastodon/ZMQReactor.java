@@ -0,0 +1,1200 @@
+package com.samsung.veles.mastodon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+import org.zeromq.ZMQ;
+
+import com.samsung.veles.mastodon.VelesManager.Compression;
+
+/**
+ * Performs all the ZeroMQ I/O of {@link VelesManager} on a single dedicated thread. ZeroMQ sockets
+ * are not thread safe, so they are created, used and closed only here. Other threads hand tasks
+ * over through a lock-free queue and receive the results as futures.
+ */
+class ZMQReactor implements Runnable {
+  private static Logger log = Logger.getLogger(ZMQReactor.class.getName());
+  private static final byte[] WAKE_UP = new byte[0];
+  public static final int DEFAULT_MAX_WINDOW = 128;
+  private static final int INITIAL_WINDOW = 16;
+  public static final long DEFAULT_RETRY_BUFFER_SIZE = 64 * 1024 * 1024;
+  // how many times a job is resubmitted before it fails
+  public static final int MAX_RETRIES = 2;
+  public static final long DEFAULT_CIRCUIT_COOLDOWN = 1000;
+  public static final long DEFAULT_REPLY_TIMEOUT = 5000;
+  // the reply later than this many average round trips counts as a failure of the slave
+  private static final int SLOW_FACTOR = 8;
+  // the smallest threshold of a slow reply, so that the jitter of the fast slaves is tolerated
+  private static final long MIN_SLOW_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private static class Pending {
+    final long id;
+    final CompletableFuture<Object> future;
+    // the connection the job was sent to, replaced by the hedge if the former fails
+    ZMQConnection connection;
+    // System.nanoTime() when the job was sent
+    long sent;
+    // the job kept to be hedged or resubmitted, or null
+    final Outgoing job;
+    // the connection the job was sent to once more, and when
+    ZMQConnection hedge;
+    long hedgeSent;
+    // where the reply is cached, or null
+    final ResultCache cache;
+    final ByteBuffer cacheKey;
+
+    Pending(Outgoing job, ZMQConnection connection, long sent, boolean retained) {
+      this.id = job.id;
+      this.future = job.future;
+      this.connection = connection;
+      this.sent = sent;
+      this.job = retained ? job : null;
+      this.cache = job.cache;
+      this.cacheKey = job.cacheKey;
+    }
+  }
+
+  /**
+   * The connection which still owes the reply to the hedged job already answered by the other one.
+   */
+  private static class Abandoned {
+    final long id;
+    final ZMQConnection connection;
+    // System.nanoTime() after which the reply is no longer waited for
+    final long expires;
+
+    Abandoned(long id, ZMQConnection connection, long expires) {
+      this.id = id;
+      this.connection = connection;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * The job serialized and compressed by the caller, ready to be sent.
+   */
+  static class Outgoing {
+    // the sequential part of the job identifier, which the reply is matched by
+    final long id;
+    // the identifier as it is written to the message
+    final byte[] encodedId;
+    // the compressed pickle, returned to MessageBuffer.POOL by release()
+    final MessageBuffer body;
+    // the out-of-band buffers the pickle refers to
+    final List<ByteBuffer> buffers;
+    final Compression compression;
+    // the dictionary for ZstdDictionary compression, sent to each connection once
+    final ZstdDictionary dictionary;
+    // whether the body is a ChunkedPickle
+    final boolean chunked;
+    // the key which selects the slave on the ConsistentHashRing, or null
+    final String routingKey;
+    // completed with the unpickled reply
+    final CompletableFuture<Object> future = new CompletableFuture<>();
+    // how many times the job was resubmitted after its slave stopped responding
+    int retries = 0;
+    // the cache to put the received reply to once it is decoded, and the key of the job
+    ResultCache cache;
+    ByteBuffer cacheKey;
+
+    Outgoing(long id, byte[] encodedId, MessageBuffer body, List<ByteBuffer> buffers,
+        Compression compression, ZstdDictionary dictionary, boolean chunked, String routingKey) {
+      this.id = id;
+      this.encodedId = encodedId;
+      this.body = body;
+      this.buffers = buffers;
+      this.compression = compression;
+      this.dictionary = dictionary;
+      this.chunked = chunked;
+      this.routingKey = routingKey;
+    }
+
+    /**
+     * Returns the body and the out-of-band buffers for reuse once the job is no longer needed.
+     */
+    void release() {
+      MessageBuffer.POOL.release(body);
+      OutOfBandPickler.release(buffers);
+    }
+  }
+
+  private final ZMQ.Context _context;
+  private final Thread _thread;
+  private final ConcurrentLinkedQueue<Runnable> _tasks = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean _signalled = new AtomicBoolean(false);
+  // callers' end of the wake up pipe, shared between all the threads
+  private final ZMQ.Socket _wake_sender;
+  // reactor's end of the wake up pipe
+  private final ZMQ.Socket _wake_receiver;
+  private volatile boolean _running = true;
+
+  // the unpicklers are reused, but each thread has its own ones to deserialize in parallel
+  private static final ThreadLocal<OutOfBandUnpickler> UNPICKLERS =
+      new ThreadLocal<OutOfBandUnpickler>() {
+        @Override
+        protected OutOfBandUnpickler initialValue() {
+          return new OutOfBandUnpickler();
+        }
+      };
+
+  // The following fields are accessed only from the reactor thread
+  private final LongObjectHashMap<Pending> _pending = new LongObjectHashMap<>();
+  // all open connections, including the retired ones
+  private final List<ZMQConnection> _connections = new ArrayList<>();
+  // connections eligible for new jobs
+  private final List<ZMQConnection> _active = new ArrayList<>();
+  // the active connections which have room in their windows, rebuilt for every job
+  private final List<ZMQConnection> _available = new ArrayList<>();
+  // the active connections by their endpoints, for the jobs with routing keys
+  private final HashMap<ZMQEndpoint, ZMQConnection> _routes = new HashMap<>();
+  private ConsistentHashRing _ring = new ConsistentHashRing(Collections.<ZMQEndpoint>emptyList());
+  // the connections already tried by route()
+  private final HashSet<ZMQConnection> _visited = new HashSet<>();
+  // jobs waiting for room in the windows, in the order of submission
+  private final ArrayDeque<Outgoing> _backlog = new ArrayDeque<>();
+  // the latency after which the jobs are hedged, null if hedging is disabled
+  private LatencyQuantile _latency;
+  // the jobs which may be hedged, in the order of sending
+  private final ArrayDeque<Pending> _hedge_candidates = new ArrayDeque<>();
+  // the connections which still owe the replies to the hedged jobs which are already answered
+  private final LongObjectHashMap<Abandoned> _abandoned = new LongObjectHashMap<>();
+  // the same, in the order of expiration
+  private final ArrayDeque<Abandoned> _abandoned_order = new ArrayDeque<>();
+  // the total size of the job bodies kept for hedging and resubmission
+  private long _retained = 0;
+  private ZMQ.Poller _poller;
+
+  private volatile LoadBalancer _balancer = new LeastOutstandingBalancer();
+  private volatile Executor _executor = ForkJoinPool.commonPool();
+  private volatile int _frame_size = ZMQOutputStream.DEFAULT_FRAME_SIZE;
+  private volatile int _max_window = DEFAULT_MAX_WINDOW;
+  private volatile double _hedge_quantile = 0;
+  private volatile long _failover_timeout = 0;
+  private volatile long _retry_buffer_size = DEFAULT_RETRY_BUFFER_SIZE;
+  private volatile long _circuit_cooldown = DEFAULT_CIRCUIT_COOLDOWN;
+  private volatile long _reply_timeout = DEFAULT_REPLY_TIMEOUT;
+  // the health of every endpoint ever connected to, so that it survives reconnections
+  private final ConcurrentHashMap<ZMQEndpoint, EndpointHealth> _health =
+      new ConcurrentHashMap<>();
+  // FD of the first active connection, published for getFD()
+  private volatile long _fd = -1;
+
+  public ZMQReactor(ZMQ.Context context) {
+    _context = context;
+    String pipe =
+        String.format("inproc://veles-mastodon-reactor-%x", System.identityHashCode(this));
+    _wake_receiver = context.socket(ZMQ.PAIR);
+    _wake_receiver.bind(pipe);
+    _wake_sender = context.socket(ZMQ.PAIR);
+    _wake_sender.connect(pipe);
+    _thread = new Thread(this, "veles-mastodon-reactor");
+    _thread.setDaemon(true);
+  }
+
+  public void start() {
+    _thread.start();
+  }
+
+  /**
+   * Stops the reactor thread and closes all the sockets. Unanswered jobs fail with IOException.
+   */
+  public void stop() {
+    _running = false;
+    wakeUp();
+    try {
+      _thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    _wake_sender.close();
+  }
+
+  /**
+   * @return The file descriptor of the first socket new jobs are sent to, or -1.
+   */
+  public long getFD() {
+    return _fd;
+  }
+
+  public int getFrameSize() {
+    return _frame_size;
+  }
+
+  /**
+   * Sets the maximal size of the outgoing frames for the connections opened afterwards.
+   */
+  public void setFrameSize(int value) {
+    if (value < 1) {
+      throw new IllegalArgumentException();
+    }
+    _frame_size = value;
+  }
+
+  public Executor getExecutor() {
+    return _executor;
+  }
+
+  /**
+   * Sets the executor which decompresses and unpickles the replies and completes the futures.
+   * The default is the common fork-join pool.
+   */
+  public void setExecutor(Executor value) {
+    if (value == null) {
+      throw new IllegalArgumentException();
+    }
+    _executor = value;
+  }
+
+  public int getMaxWindow() {
+    return _max_window;
+  }
+
+  /**
+   * Sets the highest limit of the jobs in flight to a single slave. The actual limit of each one is
+   * adjusted by {@link AdaptiveWindow}, and the jobs which do not fit wait in the reactor. 0
+   * removes the limits.
+   */
+  public CompletableFuture<Void> setMaxWindow(final int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    _max_window = value;
+    return call(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (ZMQConnection connection : _connections) {
+          connection.setWindow(newWindow());
+        }
+        return null;
+      }
+    });
+  }
+
+  private AdaptiveWindow newWindow() {
+    int max = _max_window;
+    return max > 0 ? new AdaptiveWindow(Math.min(INITIAL_WINDOW, max), 1, max) : null;
+  }
+
+  public double getHedgeQuantile() {
+    return _hedge_quantile;
+  }
+
+  /**
+   * Enables hedging: the job which is not answered for longer than the specified quantile of the
+   * recent round trip times is sent to one more slave, and the first reply wins. 0 disables it.
+   */
+  public CompletableFuture<Void> setHedgeQuantile(final double value) {
+    if (value < 0 || value >= 1) {
+      throw new IllegalArgumentException();
+    }
+    _hedge_quantile = value;
+    return call(new Callable<Void>() {
+      @Override
+      public Void call() {
+        _latency = value > 0 ? new LatencyQuantile(value) : null;
+        return null;
+      }
+    });
+  }
+
+  public long getFailoverTimeout() {
+    return _failover_timeout;
+  }
+
+  /**
+   * Enables failover: if the slave with outstanding jobs does not reply for the specified number
+   * of milliseconds, its jobs are resubmitted to the other slaves. 0 disables it.
+   */
+  public void setFailoverTimeout(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    _failover_timeout = value;
+    wakeUp();
+  }
+
+  public long getReplyTimeout() {
+    return _reply_timeout;
+  }
+
+  /**
+   * Sets how long the slave with outstanding jobs may stay silent, in milliseconds, before it is
+   * counted as failing in its EndpointHealth. Once the latency of the slave is known, the silence
+   * or the reply longer than several average round trips counts as well. 0 disables the checks.
+   * It also bounds the wait for the reply of the slave which lost the race for a hedged job,
+   * DEFAULT_REPLY_TIMEOUT being used for that when the checks are disabled.
+   */
+  public void setReplyTimeout(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    _reply_timeout = value;
+    wakeUp();
+  }
+
+  public long getRetryBufferSize() {
+    return _retry_buffer_size;
+  }
+
+  /**
+   * Sets the limit of the total size of the compressed jobs which are kept in memory until
+   * answered, so that they can be hedged or resubmitted. The jobs over the limit are not kept.
+   */
+  public void setRetryBufferSize(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    _retry_buffer_size = value;
+  }
+
+  public long getCircuitCooldown() {
+    return _circuit_cooldown;
+  }
+
+  /**
+   * Sets how long the circuit of the failing endpoint stays open before a probe job is sent to it,
+   * in milliseconds.
+   */
+  public void setCircuitCooldown(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    _circuit_cooldown = value;
+  }
+
+  /**
+   * @return The health of the endpoint, or null if it was never connected to.
+   */
+  public EndpointHealth getHealth(ZMQEndpoint endpoint) {
+    return _health.get(endpoint);
+  }
+
+  public LoadBalancer getBalancer() {
+    return _balancer;
+  }
+
+  /**
+   * Sets the strategy which distributes the jobs among the connections.
+   */
+  public void setBalancer(LoadBalancer value) {
+    if (value == null) {
+      throw new IllegalArgumentException();
+    }
+    _balancer = value;
+  }
+
+  /**
+   * Schedules the task to be executed on the reactor thread.
+   *
+   * @param task The code to run.
+   * @return The future which is completed with the task's result.
+   */
+  public <T> CompletableFuture<T> call(final Callable<T> task) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!_running) {
+          future.completeExceptionally(new IOException("The reactor is stopped"));
+          return;
+        }
+        try {
+          future.complete(task.call());
+        } catch (Exception e) {
+          future.completeExceptionally(e);
+        }
+      }
+    }, future);
+    return future;
+  }
+
+  /**
+   * Makes the specified endpoints the targets of all subsequent jobs. The change is applied as a
+   * diff: the existing connections to the endpoints which are still present are reused, new ones
+   * are opened only for the added endpoints and the connections to the removed endpoints are
+   * closed as soon as all their replies are received.
+   *
+   * @param endpoints The endpoints to connect to, one per slave.
+   */
+  public CompletableFuture<Void> setEndpoints(final List<ZMQEndpoint> endpoints) {
+    return call(new Callable<Void>() {
+      @Override
+      public Void call() {
+        HashMap<ZMQEndpoint, ZMQConnection> existing = new HashMap<>();
+        for (ZMQConnection connection : _connections) {
+          existing.put(connection.endpoint, connection);
+        }
+        List<ZMQConnection> removed = new ArrayList<>(_active);
+        _active.clear();
+        for (ZMQEndpoint endpoint : endpoints) {
+          ZMQConnection connection = existing.get(endpoint);
+          if (connection == null) {
+            connection = new ZMQConnection(_context, endpoint, _frame_size);
+            connection.setWindow(newWindow());
+            EndpointHealth health = _health.get(endpoint);
+            if (health == null) {
+              health = new EndpointHealth();
+              _health.put(endpoint, health);
+            }
+            connection.setHealth(health);
+            _connections.add(connection);
+            _poller = null;
+            log.info(String.format("Connected to %s", endpoint));
+          } else if (connection.isRetired()) {
+            connection.revive();
+          }
+          if (!_active.contains(connection)) {
+            _active.add(connection);
+          }
+        }
+        removed.removeAll(_active);
+        for (ZMQConnection connection : removed) {
+          log.info(String.format("Disconnecting from %s", connection));
+          connection.retire();
+          closeIfDrained(connection);
+        }
+        _routes.clear();
+        for (ZMQConnection connection : _active) {
+          _routes.put(connection.endpoint, connection);
+        }
+        _ring = new ConsistentHashRing(_routes.keySet());
+        _balancer.setEndpoints(endpoints);
+        _fd = _active.isEmpty() ? -1 : _active.get(0).getFD();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Sends the job to one of the active connections chosen by the load balancer. The job is
+   * serialized and compressed beforehand by the caller, so only the frames are written here.
+   *
+   * @return The future which is completed with the unpickled reply.
+   */
+  public CompletableFuture<Object> submit(Outgoing job) {
+    return submitAll(Collections.singletonList(job)).get(0);
+  }
+
+  /**
+   * Sends the jobs in one go: they are handed over to the reactor thread as a single task. Each
+   * job goes to the connection chosen by the load balancer, so the batch is spread across the
+   * slaves as usual. If every slave has its window full, the jobs wait until the replies free it.
+   *
+   * @return The futures which are completed with the unpickled replies, in the order of jobs.
+   */
+  public List<CompletableFuture<Object>> submitAll(final List<Outgoing> jobs) {
+    List<CompletableFuture<Object>> futures = new ArrayList<>(jobs.size());
+    for (final Outgoing job : jobs) {
+      futures.add(job.future);
+      job.future.whenComplete(new BiConsumer<Object, Throwable>() {
+        @Override
+        public void accept(Object result, Throwable error) {
+          if (error instanceof CancellationException) {
+            cancel(job);
+          }
+        }
+      });
+    }
+    if (!_running) {
+      for (Outgoing job : jobs) {
+        job.future.completeExceptionally(new IOException("The reactor is stopped"));
+      }
+      return futures;
+    }
+    _tasks.add(new Runnable() {
+      @Override
+      public void run() {
+        _backlog.addAll(jobs);
+        drain();
+      }
+    });
+    wakeUp();
+    return futures;
+  }
+
+  /**
+   * Forgets the cancelled job: it is removed from the backlog, or, if it is already sent, its reply
+   * is abandoned, so that the slot in the window is released once the reply arrives or the reply
+   * timeout expires.
+   */
+  private void cancel(final Outgoing job) {
+    if (!_running) {
+      return;
+    }
+    _tasks.add(new Runnable() {
+      @Override
+      public void run() {
+        Pending pending = _pending.get(job.id);
+        if (pending == null || pending.future != job.future) {
+          if (_backlog.removeFirstOccurrence(job)) {
+            job.release();
+          }
+          return;
+        }
+        _pending.remove(job.id);
+        releaseJob(pending);
+        long now = System.nanoTime();
+        if (pending.hedge != null) {
+          // only one reply is waited for, the other one is discarded as unknown
+          pending.hedge.release();
+          closeIfDrained(pending.hedge);
+        }
+        abandon(job.id, pending.connection, now);
+        log.debug(String.format("Cancelled job %s sent to %s", VelesManager.formatId(job.id),
+            pending.connection));
+      }
+    });
+    wakeUp();
+  }
+
+  private void execute(Runnable task, CompletableFuture<?> future) {
+    if (!_running) {
+      future.completeExceptionally(new IOException("The reactor is stopped"));
+      return;
+    }
+    _tasks.add(task);
+    wakeUp();
+  }
+
+  private void wakeUp() {
+    if (_signalled.compareAndSet(false, true)) {
+      synchronized (_wake_sender) {
+        _wake_sender.send(WAKE_UP, 0);
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    RuntimeException failure = null;
+    try {
+      while (_running) {
+        if (_poller == null) {
+          _poller = new ZMQ.Poller(_connections.size() + 1);
+          _poller.register(_wake_receiver, ZMQ.Poller.POLLIN);
+          for (ZMQConnection connection : _connections) {
+            _poller.register(connection.getSocket(), ZMQ.Poller.POLLIN);
+          }
+        }
+        ZMQ.Poller poller = _poller;
+        List<ZMQConnection> polled = new ArrayList<>(_connections);
+        poller.poll(getTimeout());
+        if (poller.pollin(0)) {
+          _wake_receiver.recv(0);
+          _signalled.set(false);
+        }
+        for (Runnable task = _tasks.poll(); task != null; task = _tasks.poll()) {
+          task.run();
+        }
+        for (int i = 0; i < polled.size(); i++) {
+          ZMQConnection connection = polled.get(i);
+          if (poller.pollin(i + 1) && _connections.contains(connection)) {
+            receive(connection);
+          }
+        }
+        detectStalls();
+        expireAbandoned();
+        failover();
+        drain();
+        hedge();
+      }
+    } catch (RuntimeException e) {
+      // ZMQException from a terminated context, a failing LoadBalancer, etc.
+      log.error("The reactor thread failed, all the jobs are cancelled", e);
+      _running = false;
+      failure = e;
+    }
+    shutdown(failure);
+  }
+
+  /**
+   * @param cause Why the reactor stopped, or null if stop() was called.
+   */
+  private void shutdown(RuntimeException cause) {
+    IOException error = new IOException("The reactor is stopped", cause);
+    for (Runnable task = _tasks.poll(); task != null; task = _tasks.poll()) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        log.warn("Failed to run the task of the stopped reactor", e);
+      }
+    }
+    for (Outgoing job : _backlog) {
+      job.future.completeExceptionally(error);
+      job.release();
+    }
+    _backlog.clear();
+    for (Pending pending : _pending.values()) {
+      pending.future.completeExceptionally(error);
+      releaseJob(pending);
+    }
+    _pending.clear();
+    _hedge_candidates.clear();
+    _abandoned.clear();
+    _abandoned_order.clear();
+    for (ZMQConnection connection : _connections) {
+      connection.close();
+    }
+    _connections.clear();
+    _active.clear();
+    _wake_receiver.close();
+  }
+
+  /**
+   * Sends the waiting jobs while there are connections with room in their windows.
+   */
+  private void drain() {
+    while (!_backlog.isEmpty()) {
+      if (!_running || _active.isEmpty()) {
+        Exception error =
+            _running ? new NoSlavesExistException() : new IOException("The reactor is stopped");
+        for (Outgoing job : _backlog) {
+          job.future.completeExceptionally(error);
+          job.release();
+        }
+        _backlog.clear();
+        return;
+      }
+      // the endpoints with open circuits get jobs only if nothing else is left
+      long now = System.nanoTime();
+      long cooldown = TimeUnit.MILLISECONDS.toNanos(_circuit_cooldown);
+      String key = _backlog.peek().routingKey;
+      if (key != null) {
+        ZMQConnection target = route(key, now, cooldown);
+        if (target == null) {
+          return;
+        }
+        Outgoing job = _backlog.poll();
+        if (!send(job, target)) {
+          job.release();
+        }
+        continue;
+      }
+      boolean healthy = false;
+      _available.clear();
+      for (ZMQConnection connection : _active) {
+        if (connection.getHealth().allows(now, cooldown)) {
+          healthy = true;
+          if (connection.hasRoom()) {
+            _available.add(connection);
+          }
+        }
+      }
+      if (!healthy) {
+        for (ZMQConnection connection : _active) {
+          if (connection.hasRoom()) {
+            _available.add(connection);
+          }
+        }
+      }
+      if (_available.isEmpty()) {
+        return;
+      }
+      // the job stays in the backlog if the balancer throws
+      ZMQConnection target = _balancer.choose(_available);
+      Outgoing job = _backlog.poll();
+      if (!send(job, target)) {
+        job.release();
+      }
+    }
+  }
+
+  /**
+   * Finds the slave for the routing key: the owner of the key on the ring, or, if it is unhealthy
+   * or its window is full, the next one clockwise. This bounds the load of the slaves with popular
+   * keys, while the keys still stick to the same slaves.
+   *
+   * @return The connection, or null if the job has to wait for room.
+   */
+  private ZMQConnection route(String key, long now, long cooldown) {
+    ZMQConnection unhealthy = null;
+    _visited.clear();
+    int start = _ring.find(ConsistentHashRing.hash(key));
+    for (int i = 0; i < _ring.size() && _visited.size() < _routes.size(); i++) {
+      ZMQConnection connection = _routes.get(_ring.owner((start + i) % _ring.size()));
+      if (!_visited.add(connection) || !connection.hasRoom()) {
+        continue;
+      }
+      if (connection.getHealth().allows(now, cooldown)) {
+        return connection;
+      }
+      if (unhealthy == null) {
+        unhealthy = connection;
+      }
+    }
+    return unhealthy;
+  }
+
+  /**
+   * @return Whether the job is kept for hedging or resubmission, otherwise it may be released.
+   */
+  private boolean send(Outgoing job, ZMQConnection connection) {
+    try {
+      write(job, connection);
+    } catch (IOException e) {
+      job.future.completeExceptionally(e);
+      connection.getHealth().onFailure(System.nanoTime());
+      return false;
+    }
+    connection.acquire();
+    connection.getHealth().onSend();
+    boolean retained = (_latency != null || _failover_timeout > 0)
+        && _retained + job.body.size() <= _retry_buffer_size;
+    Pending pending = new Pending(job, connection, System.nanoTime(), retained);
+    _pending.put(job.id, pending);
+    if (retained) {
+      _retained += job.body.size();
+      if (_latency != null) {
+        _hedge_candidates.add(pending);
+      }
+    }
+    return retained;
+  }
+
+  private void releaseJob(Pending pending) {
+    if (pending.job != null) {
+      _retained -= pending.job.body.size();
+      pending.job.release();
+    }
+  }
+
+  private void write(Outgoing job, ZMQConnection connection) throws IOException {
+    ZstdDictionary dictionary = job.dictionary;
+    if (connection.getHealth().getState() != EndpointHealth.State.CLOSED) {
+      // the failing slave could be restarted and lose the dictionaries
+      connection.clearDictionaries();
+    }
+    boolean embed = dictionary != null && !connection.hasDictionary(dictionary.id);
+    VelesManager.writeHeader(connection.out, job.compression, job.encodedId, job.buffers,
+        dictionary, embed, job.chunked);
+    connection.out.write(job.body.array(), 0, job.body.size());
+    connection.out.close();
+    if (embed) {
+      connection.addDictionary(dictionary.id);
+    }
+  }
+
+  /**
+   * @return How long to wait for the sockets in milliseconds, or -1 if there is no deadline.
+   */
+  private long getTimeout() {
+    return earliest(earliest(getHedgeTimeout(), getFailoverDeadline()),
+        earliest(getStallDeadline(), getAbandonedDeadline()));
+  }
+
+  /**
+   * @return The smaller of the timeouts, where -1 means no deadline.
+   */
+  private static long earliest(long a, long b) {
+    if (a < 0 || b < 0) {
+      return Math.max(a, b);
+    }
+    return Math.min(a, b);
+  }
+
+  /**
+   * @return How long the slave with outstanding jobs may stay silent before it is counted as
+   *         failing, in nanoseconds, or -1 if the checks are disabled.
+   */
+  private long getSlowThreshold(ZMQConnection connection) {
+    long threshold = TimeUnit.MILLISECONDS.toNanos(_reply_timeout);
+    if (threshold == 0) {
+      return -1;
+    }
+    long latency = connection.getHealth().getLatency();
+    if (latency >= 0) {
+      threshold = Math.min(threshold, Math.max(latency * SLOW_FACTOR, MIN_SLOW_THRESHOLD));
+    }
+    return threshold;
+  }
+
+  /**
+   * @return The time until the first busy slave is counted as stalled in milliseconds, or -1 if
+   *         there is nothing to wait for.
+   */
+  private long getStallDeadline() {
+    long deadline = Long.MAX_VALUE;
+    long now = System.nanoTime();
+    for (ZMQConnection connection : _connections) {
+      long threshold = getSlowThreshold(connection);
+      if (connection.getOutstanding() > 0 && threshold >= 0) {
+        deadline = Math.min(deadline, connection.getLastStall() + threshold - now);
+      }
+    }
+    if (deadline == Long.MAX_VALUE) {
+      return -1;
+    }
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline) + 1);
+  }
+
+  /**
+   * Records a failure of every slave which has outstanding jobs but did not reply for longer than
+   * its slow threshold, once per threshold. It works regardless of failover, which additionally
+   * takes the jobs away from such slaves.
+   */
+  private void detectStalls() {
+    long now = System.nanoTime();
+    for (ZMQConnection connection : _connections) {
+      long threshold = getSlowThreshold(connection);
+      if (connection.getOutstanding() > 0 && threshold >= 0
+          && now - connection.getLastStall() > threshold) {
+        connection.stall(now);
+        connection.getHealth().onFailure(now);
+        log.debug(String.format("%s did not reply for %d ms", connection,
+            TimeUnit.NANOSECONDS.toMillis(now - connection.getLastActivity())));
+      }
+    }
+  }
+
+  /**
+   * @return The time until the oldest candidate must be hedged in milliseconds, or -1 if there is
+   *         nothing to wait for.
+   */
+  private long getHedgeTimeout() {
+    Pending oldest = _hedge_candidates.peek();
+    if (oldest == null || _latency == null || _latency.get() < 0) {
+      return -1;
+    }
+    long remaining = oldest.sent + _latency.get() - System.nanoTime();
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+  }
+
+  /**
+   * @return The time until the first busy slave is considered dead in milliseconds, or -1 if
+   *         there is nothing to wait for.
+   */
+  private long getFailoverDeadline() {
+    long timeout = TimeUnit.MILLISECONDS.toNanos(_failover_timeout);
+    if (timeout == 0) {
+      return -1;
+    }
+    long deadline = Long.MAX_VALUE;
+    long now = System.nanoTime();
+    for (ZMQConnection connection : _connections) {
+      if (connection.getOutstanding() > 0) {
+        deadline = Math.min(deadline, connection.getLastActivity() + timeout - now);
+      }
+    }
+    if (deadline == Long.MAX_VALUE) {
+      return -1;
+    }
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline) + 1);
+  }
+
+  /**
+   * Detects the slaves which did not reply for longer than the failover timeout while having
+   * outstanding jobs, and resubmits those jobs to the other slaves.
+   */
+  private void failover() {
+    long timeout = TimeUnit.MILLISECONDS.toNanos(_failover_timeout);
+    if (timeout == 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    for (ZMQConnection connection : new ArrayList<>(_connections)) {
+      if (connection.getOutstanding() > 0 && now - connection.getLastActivity() > timeout) {
+        failover(connection, now);
+      }
+    }
+  }
+
+  private void failover(ZMQConnection connection, long now) {
+    connection.touch(now);
+    connection.getHealth().trip(now);
+    connection.clearDictionaries();
+    List<Outgoing> retries = new ArrayList<>();
+    int failed = 0;
+    for (long id : _pending.keys()) {
+      Pending pending = _pending.get(id);
+      if (pending.hedge == connection) {
+        pending.hedge = null;
+      } else if (pending.connection != connection) {
+        continue;
+      } else if (pending.hedge != null) {
+        // the hedged copy is still alive, so it takes over
+        pending.connection = pending.hedge;
+        pending.sent = pending.hedgeSent;
+        pending.hedge = null;
+      } else if (pending.job != null && pending.job.retries < MAX_RETRIES) {
+        _pending.remove(id);
+        _retained -= pending.job.body.size();
+        pending.job.retries++;
+        retries.add(pending.job);
+      } else {
+        _pending.remove(id);
+        releaseJob(pending);
+        pending.future.completeExceptionally(
+            new IOException(String.format("The slave %s stopped responding", connection)));
+        failed++;
+      }
+      connection.release();
+    }
+    for (long id : _abandoned.keys()) {
+      if (_abandoned.get(id).connection == connection) {
+        _abandoned.remove(id);
+        connection.release();
+      }
+    }
+    log.warn(String.format("%s did not reply for %d ms: resubmitted %d jobs, failed %d jobs",
+        connection, _failover_timeout, retries.size(), failed));
+    // the resubmitted jobs go first, in the order of submission
+    Collections.sort(retries, new Comparator<Outgoing>() {
+      @Override
+      public int compare(Outgoing a, Outgoing b) {
+        return Long.compare(b.id, a.id);
+      }
+    });
+    for (Outgoing job : retries) {
+      _backlog.addFirst(job);
+    }
+    closeIfDrained(connection);
+  }
+
+  /**
+   * Stops waiting for the reply of the slave which lost the race for the hedged job. The slot in
+   * its window is released once the reply arrives or the reply timeout expires, whichever is
+   * first, so that a slave which never answers does not keep it forever.
+   */
+  private void abandon(long id, ZMQConnection loser, long now) {
+    long timeout = _reply_timeout;
+    if (timeout == 0) {
+      timeout = DEFAULT_REPLY_TIMEOUT;
+    }
+    Abandoned abandoned = new Abandoned(id, loser, now + TimeUnit.MILLISECONDS.toNanos(timeout));
+    _abandoned.put(id, abandoned);
+    _abandoned_order.add(abandoned);
+  }
+
+  /**
+   * @return The time until the first abandoned reply expires in milliseconds, or -1 if there is
+   *         nothing to wait for.
+   */
+  private long getAbandonedDeadline() {
+    Abandoned first = _abandoned_order.peek();
+    if (first == null) {
+      return -1;
+    }
+    long remaining = first.expires - System.nanoTime();
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+  }
+
+  /**
+   * Releases the slots held by the abandoned replies which did not arrive in time.
+   */
+  private void expireAbandoned() {
+    long now = System.nanoTime();
+    while (!_abandoned_order.isEmpty()) {
+      Abandoned abandoned = _abandoned_order.peek();
+      if (_abandoned.get(abandoned.id) != abandoned) {
+        // the late reply arrived or the slave failed over
+        _abandoned_order.poll();
+        continue;
+      }
+      if (now < abandoned.expires) {
+        return;
+      }
+      _abandoned_order.poll();
+      _abandoned.remove(abandoned.id);
+      ZMQConnection loser = abandoned.connection;
+      log.debug(String.format("Gave up waiting for the reply to hedged job %s from %s",
+          VelesManager.formatId(abandoned.id), loser));
+      loser.release();
+      closeIfDrained(loser);
+    }
+  }
+
+  /**
+   * Sends the jobs which are pending for longer than the latency quantile to one more slave.
+   */
+  private void hedge() {
+    long threshold = _latency != null ? _latency.get() : -1;
+    long now = System.nanoTime();
+    long cooldown = TimeUnit.MILLISECONDS.toNanos(_circuit_cooldown);
+    while (!_hedge_candidates.isEmpty()) {
+      Pending pending = _hedge_candidates.peek();
+      if (_pending.get(pending.job.id) != pending) {
+        // already answered or failed
+        _hedge_candidates.poll();
+        continue;
+      }
+      if (threshold < 0 || now - pending.sent < threshold) {
+        return;
+      }
+      _hedge_candidates.poll();
+      _available.clear();
+      for (ZMQConnection connection : _active) {
+        if (connection != pending.connection && connection.hasRoom()
+            && connection.getHealth().allows(now, cooldown)) {
+          _available.add(connection);
+        }
+      }
+      if (_available.isEmpty()) {
+        continue;
+      }
+      ZMQConnection other = _balancer.choose(_available);
+      try {
+        write(pending.job, other);
+      } catch (IOException e) {
+        log.warn(String.format("Failed to hedge job %s to %s",
+            VelesManager.formatId(pending.job.id), other), e);
+        continue;
+      }
+      other.acquire();
+      other.getHealth().onSend();
+      pending.hedge = other;
+      pending.hedgeSent = now;
+      log.debug(String.format("Hedged job %s from %s to %s",
+          VelesManager.formatId(pending.job.id), pending.connection, other));
+    }
+  }
+
+  private void receive(ZMQConnection connection) {
+    while ((connection.getSocket().getEvents() & ZMQ.Poller.POLLIN) != 0) {
+      final MessageBuffer message = MessageBuffer.POOL.acquire();
+      connection.in.readMessage(message);
+      long now = System.nanoTime();
+      connection.touch(now);
+      long id = VelesManager.decodeId(message.array(), message.size());
+      final Pending pending = _pending.remove(id);
+      if (pending == null) {
+        MessageBuffer.POOL.release(message);
+        Abandoned abandoned = _abandoned.remove(id);
+        if (abandoned != null && abandoned.connection != connection) {
+          // the hedge of the cancelled job, whose slot is already released
+          _abandoned.put(id, abandoned);
+          abandoned = null;
+        }
+        if (abandoned == null) {
+          log.warn(String.format("Discarded the reply to unknown job %s from %s",
+              id != 0 ? VelesManager.formatId(id) : "?", connection));
+          continue;
+        }
+        ZMQConnection loser = abandoned.connection;
+        log.debug(String.format("Discarded the late reply to hedged job %s from %s",
+            VelesManager.formatId(id), loser));
+        loser.release();
+        if (closeIfDrained(loser) && loser == connection) {
+          return;
+        }
+        continue;
+      }
+      if (connection != pending.connection && connection != pending.hedge) {
+        // the job was resubmitted to another slave, which will answer it
+        _pending.put(id, pending);
+        MessageBuffer.POOL.release(message);
+        log.debug(String.format("Discarded the late reply to resubmitted job %s from %s",
+            VelesManager.formatId(id), connection));
+        continue;
+      }
+      // the first reply to the hedged job wins
+      boolean hedgeWon = pending.hedge != null && connection == pending.hedge;
+      ZMQConnection winner = hedgeWon ? pending.hedge : pending.connection;
+      ZMQConnection loser = hedgeWon ? pending.connection : pending.hedge;
+      if (loser != null) {
+        abandon(id, loser, now);
+      }
+      winner.release();
+      long rtt = now - (hedgeWon ? pending.hedgeSent : pending.sent);
+      AdaptiveWindow window = winner.getWindow();
+      if (window != null) {
+        window.onReply(rtt, now);
+      }
+      long threshold = getSlowThreshold(winner);
+      if (threshold >= 0 && rtt > threshold) {
+        winner.getHealth().onSlowReply(rtt, now);
+      } else {
+        winner.getHealth().onSuccess(rtt);
+      }
+      if (_latency != null) {
+        _latency.record(rtt);
+      }
+      releaseJob(pending);
+      boolean closed = closeIfDrained(winner);
+      try {
+        _executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            load(message, pending);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        MessageBuffer.POOL.release(message);
+        pending.future.completeExceptionally(e);
+      }
+      if (closed && winner == connection) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Decompresses and unpickles the received reply. It runs on the executor, so that the reactor
+   * thread only moves the frames. The reply is cached as received, before the caller gets it.
+   */
+  private static void load(MessageBuffer message, Pending pending) {
+    Object result;
+    try {
+      result = decode(message.getInputStream());
+      if (pending.cache != null) {
+        pending.cache.store(pending.cacheKey, message.toByteArray());
+      }
+    } catch (IOException | RuntimeException e) {
+      // a corrupt reply may break the decoders in any way, the job must still complete
+      pending.future.completeExceptionally(e);
+      return;
+    } finally {
+      MessageBuffer.POOL.release(message);
+    }
+    pending.future.complete(result);
+  }
+
+  /**
+   * Decompresses and unpickles the whole reply message.
+   */
+  static Object decode(InputStream message) throws IOException {
+    List<ByteBuffer> buffers = new ArrayList<>();
+    InputStream in = VelesManager.getUncompressedStream(message, new StringBuilder(), buffers);
+    OutOfBandUnpickler unpickler = UNPICKLERS.get();
+    unpickler.setBuffers(buffers);
+    try {
+      return unpickler.load(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private boolean closeIfDrained(ZMQConnection connection) {
+    if (!connection.isRetired() || connection.getOutstanding() > 0) {
+      return false;
+    }
+    for (Iterator<ZMQConnection> it = _connections.iterator(); it.hasNext();) {
+      if (it.next() == connection) {
+        it.remove();
+      }
+    }
+    connection.close();
+    _poller = null;
+    return true;
+  }
+}
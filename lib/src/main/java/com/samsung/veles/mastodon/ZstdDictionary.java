@@ -0,0 +1,69 @@
+package com.samsung.veles.mastodon;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+
+/**
+ * Zstd dictionary used by {@link VelesManager.Compression#ZstdDictionary}. The messages refer to
+ * the dictionaries by their ids, so every dictionary which was created or received is kept in a
+ * process-wide registry.
+ */
+public class ZstdDictionary {
+  private static final ConcurrentHashMap<Integer, ZstdDictionary> _registry =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The id stored in the dictionary by the trainer.
+   */
+  public final int id;
+  private final byte[] _data;
+  private final ZstdDictCompress _compress;
+  private final ZstdDictDecompress _decompress;
+
+  /**
+   * @param data The trained dictionary.
+   * @param level The Zstd level to compress with.
+   */
+  public ZstdDictionary(byte[] data, int level) {
+    id = (int) Zstd.getDictIdFromDict(data);
+    _data = data;
+    _compress = new ZstdDictCompress(data, level);
+    _decompress = new ZstdDictDecompress(data);
+  }
+
+  /**
+   * @return The raw dictionary, which is sent to the slaves.
+   */
+  public byte[] getData() {
+    return _data;
+  }
+
+  public ZstdDictCompress getCompress() {
+    return _compress;
+  }
+
+  public ZstdDictDecompress getDecompress() {
+    return _decompress;
+  }
+
+  /**
+   * Makes the dictionary available for decompression by its id. The first registered dictionary
+   * with the same id wins.
+   *
+   * @return The registered dictionary with the same id.
+   */
+  public static ZstdDictionary register(ZstdDictionary dictionary) {
+    ZstdDictionary existing = _registry.putIfAbsent(dictionary.id, dictionary);
+    return existing != null ? existing : dictionary;
+  }
+
+  /**
+   * @return The registered dictionary with the specified id or null.
+   */
+  public static ZstdDictionary get(int id) {
+    return _registry.get(id);
+  }
+}
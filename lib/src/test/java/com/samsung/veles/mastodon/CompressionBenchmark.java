@@ -0,0 +1,149 @@
+package com.samsung.veles.mastodon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.Pickler;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import com.samsung.veles.mastodon.VelesManager.Compression;
+
+/**
+ * Compares the compression methods on typical pickled jobs. The class name does not match the
+ * surefire patterns, so it is not run during the build. Run it with
+ * "mvn test -Dtest=CompressionBenchmark", the number of iterations is set with
+ * -Dveles.benchmark.iterations.
+ */
+public class CompressionBenchmark extends TestCase {
+
+  static Logger log = Logger.getLogger(CompressionBenchmark.class.getName());
+
+  private static final int ITERATIONS = Integer.getInteger("veles.benchmark.iterations", 5);
+  private static final int ARRAY_SIZE = 1 << 20;
+
+  public CompressionBenchmark(String testName) {
+    super(testName);
+    if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+      BasicConfigurator.configure();
+    }
+  }
+
+  public static Test suite() {
+    return new TestSuite(CompressionBenchmark.class);
+  }
+
+  /**
+   * Smooth signal, like the activations of a trained network.
+   */
+  private static byte[] getTensorPickle() throws PickleException, IOException {
+    float[] data = new float[ARRAY_SIZE];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (float) Math.sin(i / 1000.0);
+    }
+    TreeMap<String, Object> job = new TreeMap<>();
+    job.put("input", data);
+    return new Pickler().dumps(job);
+  }
+
+  /**
+   * Uniform noise, the worst case for any codec.
+   */
+  private static byte[] getNoisePickle() throws PickleException, IOException {
+    Random random = new Random(42);
+    float[] data = new float[ARRAY_SIZE];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = random.nextFloat();
+    }
+    TreeMap<String, Object> job = new TreeMap<>();
+    job.put("input", data);
+    return new Pickler().dumps(job);
+  }
+
+  /**
+   * Many small records with repeating keys and strings.
+   */
+  private static byte[] getRecordsPickle() throws PickleException, IOException {
+    Random random = new Random(42);
+    ArrayList<Object> records = new ArrayList<>();
+    for (int i = 0; i < ARRAY_SIZE / 64; i++) {
+      TreeMap<String, Object> record = new TreeMap<>();
+      record.put("id", i);
+      record.put("label", "class_" + random.nextInt(10));
+      record.put("score", random.nextDouble());
+      records.add(record);
+    }
+    return new Pickler().dumps(records);
+  }
+
+  private static byte[] compress(byte[] pickle, Compression codec) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream(pickle.length / 2);
+    OutputStream out =
+        VelesManager.getCompressedStream(result, codec, UUID.randomUUID().toString());
+    out.write(pickle);
+    out.close();
+    return result.toByteArray();
+  }
+
+  private static int decompress(byte[] message, byte[] buffer) throws IOException {
+    InputStream in =
+        VelesManager.getUncompressedStream(new ByteArrayInputStream(message), new StringBuilder());
+    int size = 0;
+    for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+      size += read;
+    }
+    in.close();
+    return size;
+  }
+
+  private void benchmark(String name, byte[] pickle) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    log.info(String.format("%s: %d bytes pickled", name, pickle.length));
+    log.info(String.format("%-8s %10s %8s %14s %14s", "codec", "bytes", "ratio",
+        "compress MB/s", "decompress MB/s"));
+    for (Compression codec : VelesManagerTest.WIRE_CODECS) {
+      // warm up the JIT and the buffer pools
+      byte[] message = compress(pickle, codec);
+      assertEquals(pickle.length, decompress(message, buffer));
+
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        message = compress(pickle, codec);
+      }
+      long compressTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        decompress(message, buffer);
+      }
+      long decompressTime = System.nanoTime() - start;
+      double megabytes = (double) pickle.length * ITERATIONS / (1 << 20);
+      log.info(String.format("%-8s %10d %8.2f %14.1f %14.1f", codec, message.length,
+          (double) pickle.length / message.length, megabytes * 1e9 / compressTime,
+          megabytes * 1e9 / decompressTime));
+    }
+  }
+
+  public void testTensor() throws PickleException, IOException {
+    benchmark("tensor", getTensorPickle());
+  }
+
+  public void testNoise() throws PickleException, IOException {
+    benchmark("noise", getNoisePickle());
+  }
+
+  public void testRecords() throws PickleException, IOException {
+    benchmark("records", getRecordsPickle());
+  }
+}
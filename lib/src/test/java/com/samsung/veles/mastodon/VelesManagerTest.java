@@ -1,20 +1,47 @@
 package com.samsung.veles.mastodon;
 
 import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -26,8 +53,10 @@ import net.razorvine.pickle.Unpickler;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 import org.zeromq.ZMQ;
-import org.zeromq.ZMQ.Context;
 
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.github.luben.zstd.Zstd;
 import com.samsung.veles.mastodon.VelesManager.Compression;
 
 /**
@@ -36,6 +65,8 @@ import com.samsung.veles.mastodon.VelesManager.Compression;
 public class VelesManagerTest extends TestCase {
 
   static Logger log = Logger.getLogger(VelesManagerTest.class.getName());
+  // the codecs which can be written to the message header
+  static final EnumSet<Compression> WIRE_CODECS = EnumSet.range(Compression.None, Compression.Lz4);
 
   /**
    * Create the test case
@@ -192,7 +223,7 @@ public class VelesManagerTest extends TestCase {
       _buffer_size = value;
     }
 
-    public void receive() {
+    public void receive() throws IOException {
       int read = _buffer_size;
       _data = new byte[_capacity];
       _length = 0;
@@ -215,28 +246,18 @@ public class VelesManagerTest extends TestCase {
       InvocationTargetException, IOException {
     ZMQEndpoint endpoint =
         new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("open-streams.ipc")));
-    Field field = VelesManager.class.getDeclaredField("_context");
-    field.setAccessible(true);
-    ZMQ.Context context = (ZMQ.Context) field.get(VelesManager.instance());
+    ZMQ.Context context = ZMQ.context(1);
     ZMQ.Socket socket = context.socket(ZMQ.ROUTER);
     socket.bind(endpoint.uri);
 
-    field = VelesManager.class.getDeclaredField("_currentEndpoint");
-    field.setAccessible(true);
-    field.set(VelesManager.instance(), endpoint);
-
-    Method method = VelesManager.class.getDeclaredMethod("openStreams");
-    method.setAccessible(true);
-    method.invoke(VelesManager.instance());
+    connectTo(endpoint);
+    assertNotNull(VelesManager.instance().getEndpointHealth(endpoint));
 
-    field = VelesManager.class.getDeclaredField("_in");
-    field.setAccessible(true);
-    ZMQInputStream in = (ZMQInputStream) field.get(VelesManager.instance());
+    // the streams of a connection like the one openStreams() opened
+    ZMQConnection connection = new ZMQConnection(context, endpoint);
+    ZMQInputStream in = connection.in;
     Receiver receiver = new Receiver(socket, 128);
-
-    field = VelesManager.class.getDeclaredField("_out");
-    field.setAccessible(true);
-    ZMQOutputStream out = (ZMQOutputStream) field.get(VelesManager.instance());
+    ZMQOutputStream out = connection.out;
 
     String testMsg[] = {"test data", "a bit more data"};
     log.debug(String.format("sending data: \"%s\" + \"%s\"", testMsg[0], testMsg[1]));
@@ -258,10 +279,63 @@ public class VelesManagerTest extends TestCase {
     in.read(buffer);
     assertEquals(testMsg[1], new String(buffer).substring(0, testMsg[1].length()));
 
+    connection.close();
     socket.close();
     new File(endpoint.uri.substring(6)).delete();
   }
 
+  private int receiveFrames(ZMQ.Socket socket, ByteArrayOutputStream data) throws IOException {
+    int frames = 0;
+    socket.recv(0);
+    do {
+      data.write(socket.recv(0));
+      frames++;
+    } while (socket.hasReceiveMore());
+    return frames;
+  }
+
+  public void testFrameCoalescing() throws IOException {
+    ZMQ.Context context = ZMQ.context(1);
+    ZMQ.Socket socket = context.socket(ZMQ.ROUTER);
+    String uri = "ipc://".concat(getUniqueFileName("frames.ipc"));
+    socket.bind(uri);
+    ZMQConnection connection =
+        new ZMQConnection(context, new ZMQEndpoint("localhost", "ipc", uri), 100);
+    ZMQOutputStream out = connection.out;
+
+    // 1000 one-byte writes make 10 full frames, then the end mark
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 1000; i++) {
+      out.write(i);
+      expected.write(i);
+    }
+    out.close();
+    expected.write("vpe".getBytes());
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    assertEquals(11, receiveFrames(socket, received));
+    assertTrue(Arrays.equals(expected.toByteArray(), received.toByteArray()));
+
+    // small writes are coalesced, the large ones and direct buffers go as is
+    out.write("id".getBytes());
+    out.write("mark".getBytes());
+    out.write(new byte[250]);
+    ByteBuffer direct = ByteBuffer.allocateDirect(30);
+    direct.put("direct buffer contents".getBytes()).flip();
+    out.write(direct);
+    assertEquals(0, direct.remaining());
+    out.write("tail".getBytes());
+    out.close();
+    received.reset();
+    assertEquals(5, receiveFrames(socket, received));
+    assertEquals("idmark", new String(received.toByteArray(), 0, 6));
+    assertEquals("direct buffer contentstailvpe", new String(received.toByteArray(), 256,
+        received.size() - 256));
+
+    connection.close();
+    socket.close();
+    new File(uri.substring(6)).delete();
+  }
+
   private Object getTestObject() {
     TreeMap<String, Object> map = new TreeMap<>();
     map.put("Bruce", "Willis");
@@ -275,7 +349,7 @@ public class VelesManagerTest extends TestCase {
 
   private void validateTestObject(Object back) {
     assertTrue(back instanceof Map);
-    Map map_back = (Map) back;
+    Map<?, ?> map_back = (Map<?, ?>) back;
     assertEquals(map_back.get("Bruce"), "Willis");
     assertTrue(map_back.get("Array") instanceof float[]);
     float[] arr = (float[]) map_back.get("Array");
@@ -283,6 +357,46 @@ public class VelesManagerTest extends TestCase {
     assertTrue((arr[1] - 2) * (arr[1] - 2) < 0.000001);
   }
 
+  public void testPooledGzip() throws IOException {
+    byte[] data = new byte[300000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 251 + i / 1000);
+    }
+    for (int attempt = 0; attempt < 3; attempt++) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      OutputStream out = new PooledGZIPOutputStream(compressed, VelesManager.COMPRESSION_BUFFERS);
+      out.write(data, 0, 1000);
+      out.write(data[1000]);
+      out.write(data, 1001, data.length - 1001);
+      out.close();
+      byte[] back = new byte[data.length];
+      new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(
+          compressed.toByteArray()))).readFully(back);
+      assertTrue(Arrays.equals(data, back));
+    }
+
+    // the header with the file name, as written by Python's gzip module
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(compressed);
+    out.write(data);
+    out.close();
+    byte[] plain = compressed.toByteArray();
+    byte[] named = new byte[plain.length + 5];
+    System.arraycopy(plain, 0, named, 0, 10);
+    named[3] = 8;
+    System.arraycopy("name\0".getBytes(), 0, named, 10, 5);
+    System.arraycopy(plain, 10, named, 15, plain.length - 10);
+    for (byte[] gzip : new byte[][] {plain, named}) {
+      InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(gzip),
+          VelesManager.COMPRESSION_BUFFERS);
+      byte[] back = new byte[data.length];
+      new DataInputStream(in).readFully(back);
+      assertEquals(-1, in.read());
+      in.close();
+      assertTrue(Arrays.equals(data, back));
+    }
+  }
+
   public void testPickling() throws PickleException, IOException {
     Pickler pickler = new Pickler();
     Unpickler unpickler = new Unpickler();
@@ -293,22 +407,11 @@ public class VelesManagerTest extends TestCase {
     validateTestObject(back);
   }
 
-  private class ZMQFakeSocket extends ZMQ.Socket {
-    protected ZMQFakeSocket(Context context, int type) {
-      super(context, type);
-    }
-
-    @Override
-    public long getFD() {
-      return 0;
-    }
-  }
-
   private class ZMQFakeInputStream extends ZMQInputStream {
     private final ByteArrayInputStream _real;
 
-    public ZMQFakeInputStream(byte[] buf, ZMQ.Socket socket) {
-      super(socket);
+    public ZMQFakeInputStream(byte[] buf) {
+      super(null);
       _real = new ByteArrayInputStream(buf);
     }
 
@@ -340,6 +443,251 @@ public class VelesManagerTest extends TestCase {
     }
   }
 
+  public void testOutOfBandPickling() throws PickleException, IOException {
+    TreeMap<String, Object> job = new TreeMap<>();
+    job.put("floats", new float[] {1, 2, 3});
+    job.put("doubles", new double[] {-1.5, 1e100});
+    job.put("ints", new int[] {7, -7, Integer.MAX_VALUE});
+    job.put("longs", new long[] {Long.MIN_VALUE});
+    job.put("small", new float[] {4});
+    OutOfBandPickler pickler = new OutOfBandPickler(8);
+    byte[] pickle = pickler.dumps(job);
+    List<ByteBuffer> buffers = pickler.getBuffers();
+    // the one-element float array stays in the pickle
+    assertEquals(4, buffers.size());
+    assertFalse(buffers.get(0).isDirect());
+
+    for (VelesManager.Compression codec : WIRE_CODECS) {
+      String id = UUID.randomUUID().toString();
+      ZMQFakeOutputStream fake_out = new ZMQFakeOutputStream();
+      OutputStream compressed_out = VelesManager.getCompressedStream(fake_out, codec, id, buffers);
+      compressed_out.write(pickle);
+      compressed_out.close();
+      StringBuilder anotherId = new StringBuilder();
+      List<ByteBuffer> received = new ArrayList<>();
+      InputStream uncompressed_in = VelesManager.getUncompressedStream(
+          new ZMQFakeInputStream(fake_out.toByteArray()), anotherId, received);
+      assertEquals(id, anotherId.toString());
+      assertEquals(buffers.size(), received.size());
+      OutOfBandUnpickler unpickler = new OutOfBandUnpickler();
+      unpickler.setBuffers(received);
+      Map<?, ?> back = (Map<?, ?>) unpickler.load(uncompressed_in);
+      assertTrue(Arrays.equals(new float[] {1, 2, 3}, (float[]) back.get("floats")));
+      assertTrue(Arrays.equals(new double[] {-1.5, 1e100}, (double[]) back.get("doubles")));
+      assertTrue(Arrays.equals(new int[] {7, -7, Integer.MAX_VALUE}, (int[]) back.get("ints")));
+      assertTrue(Arrays.equals(new long[] {Long.MIN_VALUE}, (long[]) back.get("longs")));
+      assertTrue(Arrays.equals(new float[] {4}, (float[]) back.get("small")));
+    }
+
+    try {
+      new OutOfBandUnpickler().loads(pickle);
+      fail("PickleException was not thrown");
+    } catch (PickleException e) {
+      log.debug(e.getMessage());
+    }
+
+    // the other globals are resolved as usual, and numpy.frombuffer is not registered globally
+    HashSet<Integer> set = new HashSet<>(Arrays.asList(1, 2));
+    assertEquals(set, new OutOfBandUnpickler().loads(new Pickler().dumps(set)));
+    byte[] global = "cnumpy\nfrombuffer\n)R.".getBytes();
+    assertFalse(new Unpickler().loads(global) instanceof float[]);
+    OutOfBandPickler.release(buffers);
+  }
+
+  public void testAdaptiveCompression() {
+    AdaptiveCompression adaptive = new AdaptiveCompression();
+    assertEquals(Compression.None, adaptive.choose("small", new byte[100]));
+
+    byte[] noise = new byte[4096];
+    new Random(42).nextBytes(noise);
+    assertTrue(AdaptiveCompression.estimateRatio(noise) < 1.1);
+    // the first job of the type is always probed with the fast codec
+    assertEquals(adaptive.getFastCodec(), adaptive.choose("noise", noise));
+    adaptive.report("noise", adaptive.getFastCodec(), noise.length, noise.length);
+    assertEquals(Compression.None, adaptive.choose("noise", noise));
+
+    byte[] text = new byte[4096];
+    for (int i = 0; i < text.length; i++) {
+      text[i] = (byte) ('a' + i % 4);
+    }
+    assertTrue(AdaptiveCompression.estimateRatio(text) > 2);
+    assertEquals(adaptive.getFastCodec(), adaptive.choose("text", text));
+
+    byte[] large = new byte[adaptive.getStrongSize()];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) ('a' + i % 4);
+    }
+    // the strong codec is tried, then chosen only if it is noticeably better
+    assertEquals(adaptive.getStrongCodec(), adaptive.choose("large", large));
+    adaptive.report("large", adaptive.getStrongCodec(), large.length, large.length / 10);
+    adaptive.report("large", adaptive.getFastCodec(), large.length, large.length / 4);
+    assertEquals(adaptive.getStrongCodec(), adaptive.choose("large", large));
+    for (int i = 0; i < 20; i++) {
+      adaptive.report("large", adaptive.getStrongCodec(), large.length, large.length / 4);
+    }
+    assertEquals(adaptive.getFastCodec(), adaptive.choose("large", large));
+    assertEquals(4, adaptive.getRatio("large", adaptive.getFastCodec()), 0.01);
+  }
+
+  private byte[] getSmallJobPickle(Random random) throws PickleException, IOException {
+    TreeMap<String, Object> job = new TreeMap<>();
+    job.put("workflow", "classifier");
+    job.put("request_id", random.nextInt());
+    job.put("user", "user_" + random.nextInt(1000));
+    job.put("features", new double[] {random.nextInt(10), random.nextInt(10), 0.5, 0});
+    job.put("labels", Arrays.asList("cat", "dog", "bird"));
+    return new Pickler().dumps(job);
+  }
+
+  private int compressedSize(byte[] pickle, Compression codec, ZstdDictionary dictionary)
+      throws IOException {
+    ZMQFakeOutputStream fake_out = new ZMQFakeOutputStream();
+    OutputStream out = VelesManager.getCompressedStream(fake_out, codec, UUID.randomUUID()
+        .toString(), Collections.<ByteBuffer>emptyList(), dictionary, false, false);
+    out.write(pickle);
+    out.close();
+    return fake_out.toByteArray().length;
+  }
+
+  public void testZstdDictionary() throws PickleException, IOException {
+    Random random = new Random(42);
+    DictionaryTrainer trainer = new DictionaryTrainer(4096, 128 * 1024, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    while (trainer.getDictionary() == null) {
+      trainer.sample(getSmallJobPickle(random));
+    }
+    ZstdDictionary dictionary = trainer.getDictionary();
+    assertSame(dictionary, ZstdDictionary.get(dictionary.id));
+
+    byte[] pickle = getSmallJobPickle(random);
+    int plain = compressedSize(pickle, Compression.Zstd, null);
+    int trained = compressedSize(pickle, Compression.ZstdDictionary, dictionary);
+    log.debug(String.format("%d bytes pickled, %d with Zstd, %d with the dictionary",
+        pickle.length, plain, trained));
+    assertTrue(trained * 2 < plain);
+
+    // the first message carries the dictionary itself
+    for (boolean embed : new boolean[] {true, false}) {
+      String id = UUID.randomUUID().toString();
+      ZMQFakeOutputStream fake_out = new ZMQFakeOutputStream();
+      OutputStream out = VelesManager.getCompressedStream(fake_out, Compression.ZstdDictionary,
+          id, Collections.<ByteBuffer>emptyList(), dictionary, embed, false);
+      new Pickler().dump(getTestObject(), out);
+      out.close();
+      StringBuilder anotherId = new StringBuilder();
+      InputStream in =
+          VelesManager.getUncompressedStream(new ZMQFakeInputStream(fake_out.toByteArray()),
+              anotherId);
+      validateTestObject(new Unpickler().load(in));
+      assertEquals(id, anotherId.toString());
+    }
+
+    ByteArrayOutputStream unknown = new ByteArrayOutputStream();
+    unknown.write(UUID.randomUUID().toString().getBytes());
+    unknown.write(new byte[] {'v', 'p', 'b', (byte) Compression.ZstdDictionary.ordinal()});
+    unknown.write(new byte[] {1, 0, 0, 0, 0, 0, 0, 0});
+    try {
+      VelesManager.getUncompressedStream(new ZMQFakeInputStream(unknown.toByteArray()),
+          new StringBuilder());
+      fail("IOException was not thrown");
+    } catch (IOException e) {
+      log.debug(e.getMessage());
+    }
+
+    // the slave which comes back gets the dictionary again
+    ZMQ.Context context = ZMQ.context(1);
+    ZMQConnection connection = new ZMQConnection(context,
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("dict.ipc"))));
+    connection.addDictionary(dictionary.id);
+    assertTrue(connection.hasDictionary(dictionary.id));
+    connection.retire();
+    connection.revive();
+    assertFalse(connection.hasDictionary(dictionary.id));
+    connection.close();
+
+    // the level belongs to the manager, which passes it to its trainer
+    VelesManager manager = VelesManager.instance();
+    int level = manager.getZstdLevel();
+    manager.setZstdLevel(level + 1);
+    try {
+      assertEquals(level + 1, manager.getDictionaryTrainer().getLevel());
+    } finally {
+      manager.setZstdLevel(level);
+    }
+  }
+
+  public void testChunkedCompression() throws PickleException, IOException {
+    byte[] pickle = new Pickler().dumps(getTestObject());
+    for (Compression codec : WIRE_CODECS) {
+      ChunkedPickle chunks =
+          ChunkedPickle.compress(pickle, codec, null, Zstd.defaultCompressionLevel(), 64,
+              ForkJoinPool.commonPool());
+      assertEquals((pickle.length + 63) / 64, chunks.getChunksCount());
+      String id = UUID.randomUUID().toString();
+      ZMQFakeOutputStream fake_out = new ZMQFakeOutputStream();
+      OutputStream out = VelesManager.getCompressedStream(fake_out, codec, id,
+          Collections.<ByteBuffer>emptyList(), null, false, true);
+      chunks.writeTo(out);
+      out.close();
+      StringBuilder anotherId = new StringBuilder();
+      InputStream in =
+          VelesManager.getUncompressedStream(new ZMQFakeInputStream(fake_out.toByteArray()),
+              anotherId);
+      validateTestObject(new Unpickler().load(in));
+      assertEquals(id, anotherId.toString());
+    }
+  }
+
+  public void testJobIds() throws IOException {
+    for (boolean compact : new boolean[] {false, true}) {
+      byte[] encoded = VelesManager.encodeId(12345, compact);
+      assertEquals(compact ? VelesManager.COMPACT_ID_LENGTH : VelesManager.ID_LENGTH,
+          encoded.length);
+      ZMQFakeOutputStream fake_out = new ZMQFakeOutputStream();
+      VelesManager.writeHeader(fake_out, Compression.None, encoded,
+          Collections.<ByteBuffer>emptyList(), null, false, false);
+      new Pickler().dump(getTestObject(), fake_out);
+      byte[] message = fake_out.toByteArray();
+      assertEquals(12345, VelesManager.decodeId(message, message.length));
+      StringBuilder id = new StringBuilder();
+      InputStream in = VelesManager.getUncompressedStream(new ZMQFakeInputStream(message), id);
+      validateTestObject(new Unpickler().load(in));
+      assertEquals(VelesManager.formatId(12345), id.toString());
+    }
+    // the ids of other processes and garbage are not recognized
+    byte[] foreign = UUID.randomUUID().toString().getBytes();
+    assertEquals(0, VelesManager.decodeId(foreign, foreign.length));
+    byte[] garbage = "not-an-id-at-all-but-long-enough-to-be-parsed".getBytes();
+    assertEquals(0, VelesManager.decodeId(garbage, garbage.length));
+  }
+
+  public void testLongObjectHashMap() {
+    Random random = new Random(42);
+    LongObjectHashMap<Long> map = new LongObjectHashMap<>(4);
+    HashMap<Long, Long> reference = new HashMap<>();
+    for (int i = 0; i < 100000; i++) {
+      // a narrow key range makes the clusters collide and the removals shift them
+      long key = random.nextInt(512) - 16;
+      if (random.nextBoolean()) {
+        assertEquals(reference.put(key, (long) i), map.put(key, (long) i));
+      } else {
+        assertEquals(reference.remove(key), map.remove(key));
+      }
+      assertEquals(reference.size(), map.size());
+    }
+    for (long key = -16; key < 496; key++) {
+      assertEquals(reference.get(key), map.get(key));
+    }
+    assertEquals(new HashSet<>(reference.values()), new HashSet<>(map.values()));
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertNull(map.get(0));
+  }
+
   private class ZMQFakeOutputStream extends ZMQOutputStream {
     private final ByteArrayOutputStream _real;
 
@@ -366,6 +714,13 @@ public class VelesManagerTest extends TestCase {
       _real.write(b, off, len);
     }
 
+    @Override
+    public void write(ByteBuffer buffer) {
+      byte[] data = new byte[buffer.remaining()];
+      buffer.get(data);
+      _real.write(data, 0, data.length);
+    }
+
     @Override
     public void close() {}
 
@@ -374,55 +729,71 @@ public class VelesManagerTest extends TestCase {
     }
   }
 
-  @SuppressWarnings("unchecked")
-  public void testExecutePickling() throws PickleException, IllegalAccessException,
-      IllegalArgumentException, InvocationTargetException, IOException, NoSuchMethodException,
-      SecurityException, NoSuchFieldException {
-    Method submit = VelesManager.class.getDeclaredMethod("submit", Object.class, Compression.class);
-    submit.setAccessible(true);
-    Method yield = VelesManager.class.getDeclaredMethod("yield", String.class);
-    yield.setAccessible(true);
-    Field out = VelesManager.class.getDeclaredField("_out");
-    out.setAccessible(true);
-    Field pending = VelesManager.class.getDeclaredField("_pending");
-    pending.setAccessible(true);
-    Field field = VelesManager.class.getDeclaredField("_socket");
-    field.setAccessible(true);
-    ZMQ.Socket socket = (ZMQ.Socket) field.get(VelesManager.instance());
-    if (socket != null) {
-      socket.close();
-    }
-    Field context = VelesManager.class.getDeclaredField("_context");
-    context.setAccessible(true);
-    socket = new ZMQFakeSocket((ZMQ.Context) context.get(VelesManager.instance()), ZMQ.DEALER);
-    field.set(VelesManager.instance(), socket);
-    field = VelesManager.class.getDeclaredField("_socket_refs");
-    field.setAccessible(true);
-    ((TreeMap<Long, Integer>) field.get(VelesManager.instance())).put(socket.getFD(), 0);
+  public void testExecutePickling() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("pickling.ipc")));
+    TestServer server = new TestServer(endpoint, Compression.values().length);
+    Thread t = new Thread(server);
+    t.start();
+    connectTo(endpoint);
 
     Object job = getTestObject();
 
     for (VelesManager.Compression codec : VelesManager.Compression.values()) {
+      String id = VelesManager.instance().submit(job, codec);
+      Object res = VelesManager.instance().yield(id);
+      validateTestObject(res);
+    }
+    t.join();
+    server.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  public void testCompressedStreams() throws PickleException, IOException {
+    Object job = getTestObject();
+
+    for (VelesManager.Compression codec : WIRE_CODECS) {
+      String id = UUID.randomUUID().toString();
       ZMQFakeOutputStream fake_out = new ZMQFakeOutputStream();
-      out.set(VelesManager.instance(), fake_out);
-      String id = (String) submit.invoke(VelesManager.instance(), job, codec);
+      OutputStream compressed_out = VelesManager.getCompressedStream(fake_out, codec, id);
+      new Pickler().dump(job, compressed_out);
+      compressed_out.close();
       byte[] ser = fake_out.toByteArray();
       log.debug(String.format("Codec %s yielded %d bytes", codec.name(), ser.length));
-      TreeMap<String, ZMQInputStream> _pending =
-          (TreeMap<String, ZMQInputStream>) pending.get(VelesManager.instance());
-      _pending.put(id, new ZMQFakeInputStream(ser, socket));
-      Object res = yield.invoke(VelesManager.instance(), id);
+      StringBuilder anotherId = new StringBuilder();
+      InputStream uncompressed_in =
+          VelesManager.getUncompressedStream(new ZMQFakeInputStream(ser), anotherId);
+      Object res = new Unpickler().load(uncompressed_in);
+      assertEquals(id, anotherId.toString());
       validateTestObject(res);
     }
   }
 
   public class TestServer implements Runnable {
     private final ZMQ.Socket _socket;
+    private final int _messages;
+    private final long _delay;
 
     public TestServer(ZMQEndpoint endpoint) {
+      this(endpoint, 1);
+    }
+
+    public TestServer(ZMQEndpoint endpoint, int messages) {
+      this(endpoint, messages, 0);
+    }
+
+    /**
+     * @param delay The time to wait before each reply, in milliseconds.
+     */
+    public TestServer(ZMQEndpoint endpoint, int messages, long delay) {
       ZMQ.Context context = ZMQ.context(1);
       _socket = context.socket(ZMQ.ROUTER);
       _socket.bind(endpoint.uri);
+      _messages = messages;
+      _delay = delay;
     }
 
     public void dispose() {
@@ -432,6 +803,12 @@ public class VelesManagerTest extends TestCase {
     @Override
     public void run() {
       log.debug("working");
+      for (int i = 0; i < _messages; i++) {
+        echo();
+      }
+    }
+
+    private void echo() {
       ArrayList<byte[]> incoming = new ArrayList<>();
       boolean first = true;
       do {
@@ -452,35 +829,1236 @@ public class VelesManagerTest extends TestCase {
         System.arraycopy(incoming.get(i), 0, merged, overall, length);
         overall += length;
       }
+      if (_delay > 0) {
+        try {
+          Thread.sleep(_delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
       log.debug(String.format("sending back the same pickle (%d bytes)", overall));
       _socket.send(incoming.get(0), ZMQ.NOBLOCK | ZMQ.SNDMORE);
       _socket.send(merged, ZMQ.NOBLOCK);
     }
   }
 
+  /**
+   * Points VelesManager to the specified endpoints bypassing the master.
+   */
+  private void connectTo(ZMQEndpoint... endpoints) throws NoSuchFieldException,
+      SecurityException, IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException {
+    Field field = VelesManager.class.getDeclaredField("_currentEndpoints");
+    field.setAccessible(true);
+    field.set(VelesManager.instance(), Arrays.asList(endpoints));
+
+    Method method = VelesManager.class.getDeclaredMethod("openStreams");
+    method.setAccessible(true);
+    method.invoke(VelesManager.instance());
+  }
+
   public void testExecute() throws IOException, NoSuchFieldException, SecurityException,
       IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
       InvocationTargetException, InterruptedException, UnsupportedObjectException,
       NoSlavesExistException {
     ZMQEndpoint endpoint =
         new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("execute.ipc")));
-    TestServer server = new TestServer(endpoint);
+    TestServer server = new TestServer(endpoint, 3 * Compression.values().length + 1);
     Thread t = new Thread(server);
     t.start();
 
-    Field field = VelesManager.class.getDeclaredField("_currentEndpoint");
-    field.setAccessible(true);
-    field.set(VelesManager.instance(), endpoint);
-
-    Method method = VelesManager.class.getDeclaredMethod("openStreams");
-    method.setAccessible(true);
-    method.invoke(VelesManager.instance());
+    connectTo(endpoint);
 
     Object job = getTestObject();
     Object response = VelesManager.instance().execute(job);
     validateTestObject(response);
+    for (Compression codec : Compression.values()) {
+      validateTestObject(VelesManager.instance().execute(job, codec));
+    }
+    VelesManager.instance().setOutOfBandThreshold(0);
+    try {
+      for (Compression codec : Compression.values()) {
+        validateTestObject(VelesManager.instance().execute(job, codec));
+      }
+    } finally {
+      VelesManager.instance().setOutOfBandThreshold(-1);
+    }
+    VelesManager.instance().setChunkSize(64);
+    try {
+      for (Compression codec : Compression.values()) {
+        validateTestObject(VelesManager.instance().execute(job, codec));
+      }
+    } finally {
+      VelesManager.instance().setChunkSize(0);
+    }
+    t.join();
+    server.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  public void testSubmitAsync() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, ExecutionException {
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("async.ipc")));
+    final int threads = 8, jobs = 16;
+    TestServer server = new TestServer(endpoint, threads * jobs);
+    Thread t = new Thread(server);
+    t.start();
+
+    connectTo(endpoint);
+    // the results are unpickled off the reactor thread
+    final AtomicInteger unpickled = new AtomicInteger();
+    final Executor executor = VelesManager.instance().getResultExecutor();
+    VelesManager.instance().setResultExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        unpickled.incrementAndGet();
+        executor.execute(command);
+      }
+    });
+
+    final List<CompletableFuture<Object>> futures =
+        Collections.synchronizedList(new ArrayList<CompletableFuture<Object>>());
+    Thread[] submitters = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      submitters[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < jobs; j++) {
+            futures.add(VelesManager.instance().submitAsync(getTestObject(), Compression.Snappy));
+          }
+        }
+      };
+      submitters[i].start();
+    }
+    for (Thread submitter : submitters) {
+      submitter.join();
+    }
+    assertEquals(threads * jobs, futures.size());
+    for (CompletableFuture<Object> future : futures) {
+      validateTestObject(future.get());
+    }
+    VelesManager.instance().setResultExecutor(executor);
+    assertEquals(threads * jobs, unpickled.get());
+    t.join();
+    server.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  public void testSubmitAll() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, ExecutionException,
+      UnsupportedObjectException, NoSlavesExistException {
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("batch.ipc")));
+    final int jobs = 64;
+    TestServer server = new TestServer(endpoint, 3 * jobs + 2);
+    Thread t = new Thread(server);
+    t.start();
+
+    connectTo(endpoint);
+
+    List<Object> batch = new ArrayList<>();
+    for (int i = 0; i < jobs; i++) {
+      batch.add(getTestObject());
+    }
+    List<String> ids = VelesManager.instance().submitAll(batch, Compression.Lz4);
+    assertEquals(jobs, new HashSet<>(ids).size());
+    List<Object> results = VelesManager.instance().yieldAll(ids);
+    assertEquals(jobs, results.size());
+    for (Object result : results) {
+      validateTestObject(result);
+    }
+    // the invalid batches leave the jobs registered
+    List<String> pair = VelesManager.instance().submitAll(batch.subList(0, 2), Compression.None);
+    try {
+      VelesManager.instance().yieldAll(Arrays.asList(pair.get(0), pair.get(0)));
+      fail("A duplicate id was accepted");
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      VelesManager.instance().yieldAll(Arrays.asList(pair.get(0), pair.get(1), "unknown"));
+      fail("An unknown id was accepted");
+    } catch (IllegalArgumentException e) {
+    }
+    for (Object result : VelesManager.instance().yieldAll(pair)) {
+      validateTestObject(result);
+    }
+    for (CompletableFuture<Object> future : VelesManager.instance().submitAllAsync(batch,
+        Compression.None)) {
+      validateTestObject(future.get());
+    }
+    VelesManager.instance().setCompactIds(true);
+    try {
+      for (Object result : VelesManager.instance().yieldAll(
+          VelesManager.instance().submitAll(batch, Compression.Zstd))) {
+        validateTestObject(result);
+      }
+    } finally {
+      VelesManager.instance().setCompactIds(false);
+    }
+    t.join();
+    server.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  public void testCompletionOrder() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    ZMQEndpoint slow =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("slow.ipc")));
+    ZMQEndpoint fast =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("fast.ipc")));
+    TestServer slowServer = new TestServer(slow, 1, 300);
+    TestServer fastServer = new TestServer(fast, 1);
+    Thread slowThread = new Thread(slowServer);
+    Thread fastThread = new Thread(fastServer);
+    slowThread.start();
+    fastThread.start();
+
+    LoadBalancer balancer = VelesManager.instance().getLoadBalancer();
+    // the first job goes to the slow slave, the second one to the fast slave
+    VelesManager.instance().setLoadBalancer(new LoadBalancer() {
+      private int _jobs = 0;
+
+      @Override
+      public ZMQConnection choose(List<ZMQConnection> connections) {
+        return connections.get(_jobs++ % connections.size());
+      }
+    });
+    connectTo(slow, fast);
+    try {
+      String first = VelesManager.instance().submit(getTestObject(), Compression.None);
+      String second = VelesManager.instance().submit(getTestObject(), Compression.None);
+      assertEquals(second, VelesManager.instance().take());
+      validateTestObject(VelesManager.instance().yield(second));
+      assertNull(VelesManager.instance().poll(10, TimeUnit.MILLISECONDS));
+      assertEquals(first, VelesManager.instance().poll(10, TimeUnit.SECONDS));
+      validateTestObject(VelesManager.instance().yield(first));
+    } finally {
+      VelesManager.instance().setLoadBalancer(balancer);
+    }
+    slowThread.join();
+    fastThread.join();
+    slowServer.dispose();
+    fastServer.dispose();
+    new File(slow.uri.substring(6)).delete();
+    new File(fast.uri.substring(6)).delete();
+  }
+
+  public void testCompletedQueueDrained() throws IOException, NoSuchFieldException,
+      SecurityException, IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("drain.ipc")));
+    final int cycles = 50, batch = 4;
+    TestServer server = new TestServer(endpoint, cycles * (batch + 1));
+    Thread thread = new Thread(server);
+    thread.start();
+    connectTo(endpoint);
+    VelesManager manager = VelesManager.instance();
+    Field field = VelesManager.class.getDeclaredField("_completed");
+    field.setAccessible(true);
+    Collection<?> completed = (Collection<?>) field.get(manager);
+    completed.clear();
+    for (int i = 0; i < cycles; i++) {
+      validateTestObject(manager.execute(getTestObject(), Compression.None));
+      // the results arrive before they are yield()-ed
+      List<String> ids = new ArrayList<>();
+      for (int j = 0; j < batch; j++) {
+        ids.add(manager.submit(getTestObject(), Compression.None));
+      }
+      Thread.sleep(2);
+      for (String id : ids) {
+        validateTestObject(manager.yield(id));
+      }
+    }
+    // the yield()-ed ids are purged in bulk rather than one by one
+    assertTrue(completed.size() <= VelesManager.COMPLETED_SLACK);
+    assertNull(manager.poll(0, TimeUnit.MILLISECONDS));
+    thread.join();
+    server.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  public void testAdaptiveWindow() {
+    AdaptiveWindow window = new AdaptiveWindow(4, 1, 16);
+    long now = 0;
+    // steady latency: the limit grows by one per window of replies up to the maximum
+    for (int i = 0; i < 5; i++) {
+      window.onReply(1000000, now += 1000000);
+    }
+    assertEquals(5, window.getLimit());
+    for (int i = 0; i < 1000; i++) {
+      window.onReply(1000000, now += 1000000);
+    }
+    assertEquals(16, window.getLimit());
+    // the latency grows: the limit is halved, but only once per round trip
+    window.onReply(10000000, now += 1000000);
+    window.onReply(10000000, now += 1000000);
+    assertEquals(8, window.getLimit());
+    window.onReply(10000000, now += 20000000);
+    assertEquals(4, window.getLimit());
+    for (int i = 0; i < 10; i++) {
+      window.onReply(10000000, now += 20000000);
+    }
+    assertEquals(1, window.getLimit());
+  }
+
+  public void testInFlightLimits() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, ExecutionException,
+      UnsupportedObjectException, NoSlavesExistException {
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("limits.ipc")));
+    final int jobs = 8;
+    TestServer server = new TestServer(endpoint, 2 + 2 * jobs, 50);
+    Thread t = new Thread(server);
+    t.start();
+
+    connectTo(endpoint);
+    VelesManager manager = VelesManager.instance();
+    manager.setMaxInFlight(2);
+    manager.setInFlightTimeout(0);
+    try {
+      CompletableFuture<Object> first = manager.submitAsync(getTestObject(), Compression.None);
+      CompletableFuture<Object> second = manager.submitAsync(getTestObject(), Compression.None);
+      assertEquals(2, manager.getInFlight());
+      try {
+        manager.submitAsync(getTestObject(), Compression.None).get();
+        fail("TooManyJobsException was not thrown");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof TooManyJobsException);
+      }
+      validateTestObject(first.get());
+      validateTestObject(second.get());
+    } finally {
+      manager.setMaxInFlight(0);
+      manager.setInFlightTimeout(-1);
+    }
+
+    // the jobs which do not fit into the window of the slave wait for the replies
+    manager.setMaxInFlightPerSlave(1);
+    try {
+      List<Object> batch = new ArrayList<>();
+      for (int i = 0; i < jobs; i++) {
+        batch.add(getTestObject());
+      }
+      for (Object result : manager.yieldAll(manager.submitAll(batch, Compression.None))) {
+        validateTestObject(result);
+      }
+    } finally {
+      manager.setMaxInFlightPerSlave(128);
+    }
+
+    // the batch larger than the limit is sent in parts
+    manager.setMaxInFlight(2);
+    try {
+      List<Object> batch = new ArrayList<>();
+      for (int i = 0; i < jobs; i++) {
+        batch.add(getTestObject());
+      }
+      for (Object result : manager.yieldAll(manager.submitAll(batch, Compression.None))) {
+        validateTestObject(result);
+      }
+      assertEquals(0, manager.getInFlight());
+    } finally {
+      manager.setMaxInFlight(0);
+    }
     t.join();
     server.dispose();
     new File(endpoint.uri.substring(6)).delete();
   }
+
+  public void testDeadlines() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("deadline.ipc")));
+    TestServer server = new TestServer(endpoint, 2, 200);
+    Thread t = new Thread(server);
+    t.start();
+
+    connectTo(endpoint);
+    String id = VelesManager.instance().submit(getTestObject(), Compression.None);
+    try {
+      VelesManager.instance().yield(id, 20, TimeUnit.MILLISECONDS);
+      fail("JobTimeoutException was not thrown");
+    } catch (JobTimeoutException e) {
+      log.debug(e.getMessage());
+    }
+    // the late reply is discarded and does not affect the next job
+    id = VelesManager.instance().submit(getTestObject(), Compression.None);
+    validateTestObject(VelesManager.instance().yield(id, 10, TimeUnit.SECONDS));
+    t.join();
+    server.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  public void testCancelledJob() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("cancel.ipc")));
+    // accepts the job but never replies
+    TestServer server = new TestServer(endpoint, 0);
+    VelesManager manager = VelesManager.instance();
+    LoadBalancer balancer = manager.getLoadBalancer();
+    final ZMQConnection[] chosen = {null};
+    manager.setLoadBalancer(new LoadBalancer() {
+      @Override
+      public ZMQConnection choose(List<ZMQConnection> connections) {
+        chosen[0] = connections.get(0);
+        return chosen[0];
+      }
+    });
+    connectTo(endpoint);
+    manager.setReplyTimeout(200);
+    try {
+      String id = manager.submit(getTestObject(), Compression.None);
+      try {
+        manager.yield(id, 20, TimeUnit.MILLISECONDS);
+        fail("JobTimeoutException was not thrown");
+      } catch (JobTimeoutException e) {
+        log.debug(e.getMessage());
+      }
+      assertNotNull(chosen[0]);
+      // the slot is released once the reply timeout expires, without failover
+      long deadline = System.currentTimeMillis() + 2000;
+      while (chosen[0].getOutstanding() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, chosen[0].getOutstanding());
+    } finally {
+      manager.setReplyTimeout(ZMQReactor.DEFAULT_REPLY_TIMEOUT);
+      manager.setLoadBalancer(balancer);
+    }
+    server.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  public void testHedging() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    final ZMQEndpoint slow =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("slow.ipc")));
+    final ZMQEndpoint fast =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("fast.ipc")));
+    final int warmup = 64;
+    TestServer slowServer = new TestServer(slow, 1, 1000);
+    TestServer fastServer = new TestServer(fast, warmup + 1);
+    Thread slowThread = new Thread(slowServer);
+    Thread fastThread = new Thread(fastServer);
+    slowThread.start();
+    fastThread.start();
+
+    VelesManager manager = VelesManager.instance();
+    LoadBalancer balancer = manager.getLoadBalancer();
+    final ZMQEndpoint[] target = {fast};
+    manager.setLoadBalancer(new LoadBalancer() {
+      @Override
+      public ZMQConnection choose(List<ZMQConnection> connections) {
+        for (ZMQConnection connection : connections) {
+          if (connection.endpoint.equals(target[0])) {
+            return connection;
+          }
+        }
+        return connections.get(0);
+      }
+    });
+    connectTo(slow, fast);
+    manager.setHedgeQuantile(0.9);
+    try {
+      // the latency is measured on the fast slave
+      for (int i = 0; i < warmup; i++) {
+        validateTestObject(manager.execute(getTestObject(), Compression.None));
+      }
+      target[0] = slow;
+      String id = manager.submit(getTestObject(), Compression.None);
+      validateTestObject(manager.yield(id, 500, TimeUnit.MILLISECONDS));
+    } finally {
+      manager.setHedgeQuantile(0);
+      manager.setLoadBalancer(balancer);
+    }
+    slowThread.join();
+    fastThread.join();
+    slowServer.dispose();
+    fastServer.dispose();
+    new File(slow.uri.substring(6)).delete();
+    new File(fast.uri.substring(6)).delete();
+  }
+
+  public void testAbandonedHedge() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    final ZMQEndpoint dead =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("dead.ipc")));
+    final ZMQEndpoint alive =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("alive.ipc")));
+    final int warmup = 64;
+    // accepts the job but never replies
+    TestServer deadServer = new TestServer(dead, 0);
+    TestServer aliveServer = new TestServer(alive, warmup + 1);
+    Thread aliveThread = new Thread(aliveServer);
+    aliveThread.start();
+
+    VelesManager manager = VelesManager.instance();
+    LoadBalancer balancer = manager.getLoadBalancer();
+    final ZMQEndpoint[] target = {alive};
+    final ZMQConnection[] loser = {null};
+    manager.setLoadBalancer(new LoadBalancer() {
+      @Override
+      public ZMQConnection choose(List<ZMQConnection> connections) {
+        for (ZMQConnection connection : connections) {
+          if (connection.endpoint.equals(target[0])) {
+            if (target[0] == dead) {
+              loser[0] = connection;
+            }
+            return connection;
+          }
+        }
+        return connections.get(0);
+      }
+    });
+    connectTo(dead, alive);
+    manager.setHedgeQuantile(0.9);
+    manager.setReplyTimeout(200);
+    try {
+      for (int i = 0; i < warmup; i++) {
+        validateTestObject(manager.execute(getTestObject(), Compression.None));
+      }
+      target[0] = dead;
+      String id = manager.submit(getTestObject(), Compression.None);
+      validateTestObject(manager.yield(id, 500, TimeUnit.MILLISECONDS));
+      assertNotNull(loser[0]);
+      // the slot of the dead slave is released once the reply timeout expires
+      long deadline = System.currentTimeMillis() + 2000;
+      while (loser[0].getOutstanding() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, loser[0].getOutstanding());
+    } finally {
+      manager.setHedgeQuantile(0);
+      manager.setReplyTimeout(ZMQReactor.DEFAULT_REPLY_TIMEOUT);
+      manager.setLoadBalancer(balancer);
+    }
+    aliveThread.join();
+    deadServer.dispose();
+    aliveServer.dispose();
+    new File(dead.uri.substring(6)).delete();
+    new File(alive.uri.substring(6)).delete();
+  }
+
+  public void testFailover() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    final ZMQEndpoint dead =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("dead.ipc")));
+    final ZMQEndpoint alive =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("alive.ipc")));
+    final int jobs = 4;
+    // accepts the jobs but never replies
+    TestServer deadServer = new TestServer(dead, 0);
+    TestServer aliveServer = new TestServer(alive, jobs);
+    Thread aliveThread = new Thread(aliveServer);
+    aliveThread.start();
+
+    VelesManager manager = VelesManager.instance();
+    LoadBalancer balancer = manager.getLoadBalancer();
+    manager.setLoadBalancer(new LoadBalancer() {
+      @Override
+      public ZMQConnection choose(List<ZMQConnection> connections) {
+        for (ZMQConnection connection : connections) {
+          if (connection.endpoint.equals(dead)) {
+            return connection;
+          }
+        }
+        return connections.get(0);
+      }
+    });
+    connectTo(dead, alive);
+    manager.setFailoverTimeout(200);
+    try {
+      List<String> ids = new ArrayList<>();
+      for (int i = 0; i < jobs; i++) {
+        ids.add(manager.submit(getTestObject(), Compression.None));
+      }
+      for (String id : ids) {
+        validateTestObject(manager.yield(id, 5, TimeUnit.SECONDS));
+      }
+      assertNotSame(EndpointHealth.State.CLOSED, manager.getEndpointHealth(dead).getState());
+      assertEquals(EndpointHealth.State.CLOSED, manager.getEndpointHealth(alive).getState());
+    } finally {
+      manager.setFailoverTimeout(0);
+      manager.setLoadBalancer(balancer);
+    }
+    aliveThread.join();
+    deadServer.dispose();
+    aliveServer.dispose();
+    new File(dead.uri.substring(6)).delete();
+    new File(alive.uri.substring(6)).delete();
+  }
+
+  public void testCircuitBreaker() {
+    EndpointHealth health = new EndpointHealth();
+    long cooldown = 1000;
+    assertEquals(-1, health.getLatency());
+    health.onSuccess(100);
+    health.onSuccess(200);
+    assertEquals(110, health.getLatency());
+    // a few failures do not open the circuit
+    for (int i = 0; i < 4; i++) {
+      health.onFailure(0);
+    }
+    assertEquals(EndpointHealth.State.CLOSED, health.getState());
+    assertTrue(health.allows(0, cooldown));
+    while (health.getState() == EndpointHealth.State.CLOSED) {
+      health.onFailure(0);
+    }
+    assertTrue(health.getFailureRate() >= 0.5);
+    assertFalse(health.allows(cooldown - 1, cooldown));
+    // a single probe is let through after the cooldown
+    assertTrue(health.allows(cooldown, cooldown));
+    assertEquals(EndpointHealth.State.HALF_OPEN, health.getState());
+    health.onSend();
+    assertFalse(health.allows(cooldown, cooldown));
+    // the failed probe reopens the circuit
+    health.onFailure(cooldown);
+    assertEquals(EndpointHealth.State.OPEN, health.getState());
+    assertFalse(health.allows(cooldown * 2 - 1, cooldown));
+    assertTrue(health.allows(cooldown * 2, cooldown));
+    health.onSend();
+    // the successful probe closes it
+    health.onSuccess(100);
+    assertEquals(EndpointHealth.State.CLOSED, health.getState());
+    assertEquals(0, health.getFailureRate(), 0);
+    assertTrue(health.allows(cooldown * 2, cooldown));
+    health.trip(cooldown * 3);
+    assertFalse(health.allows(cooldown * 3, cooldown));
+  }
+
+  public void testSlowSlaveHealth() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("slow.ipc")));
+    TestServer server = new TestServer(endpoint, 2, 200);
+    Thread t = new Thread(server);
+    t.start();
+    connectTo(endpoint);
+    VelesManager manager = VelesManager.instance();
+    // failover stays disabled, the silence and the late replies count anyway
+    assertEquals(0, manager.getFailoverTimeout());
+    manager.setReplyTimeout(50);
+    try {
+      for (int i = 0; i < 2; i++) {
+        validateTestObject(manager.execute(getTestObject(), Compression.None));
+      }
+      EndpointHealth health = manager.getEndpointHealth(endpoint);
+      assertTrue(health.getFailureRate() >= 0.5);
+      assertEquals(EndpointHealth.State.OPEN, health.getState());
+    } finally {
+      manager.setReplyTimeout(ZMQReactor.DEFAULT_REPLY_TIMEOUT);
+    }
+    t.join();
+    server.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  public void testMeasuredLatencyMetrics() throws IOException, InterruptedException,
+      NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException,
+      NoSuchMethodException, InvocationTargetException, UnsupportedObjectException,
+      NoSlavesExistException {
+    MeasuredLatencyMetrics metrics =
+        new MeasuredLatencyMetrics(new SameHostMetrics(), MeasuredLatencyMetrics.DEFAULT_SCALE);
+    ZMQEndpoint ipc = new ZMQEndpoint("localhost", "ipc", "ipc:///tmp/mastodon-test-metrics");
+    ZMQEndpoint inproc = new ZMQEndpoint("localhost", "inproc", "inproc://mastodon-test");
+    ZMQEndpoint near = new ZMQEndpoint("remote", "tcp", "tcp://127.0.0.1:1");
+    ZMQEndpoint far = new ZMQEndpoint("localhost", "tcp", "tcp://127.0.0.1:2");
+    metrics.setProbeTimeout(0);
+    // without measurements, the fallback decides
+    assertEquals(0.f, metrics.distance(ipc, "localhost"));
+    assertEquals(2.f, metrics.distance(inproc, "localhost"));
+    assertEquals(1.f, metrics.distance(near, "localhost"));
+    assertEquals(-1, metrics.getLatency(near));
+    metrics.record(near, 100000);
+    metrics.record(far, 10000000);
+    metrics.record(far, 20000000);
+    assertEquals(13000000, metrics.getLatency(far));
+    // the remote endpoint wins as it is faster
+    assertTrue(metrics.distance(near, "localhost") < metrics.distance(far, "localhost"));
+    assertTrue(metrics.distance(far, "localhost") < 1.f);
+    metrics.record(inproc, 1);
+    assertEquals(2.f, metrics.distance(inproc, "localhost"));
+
+    metrics.setProbeTimeout(MeasuredLatencyMetrics.DEFAULT_PROBE_TIMEOUT);
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    try {
+      ZMQEndpoint probed =
+          new ZMQEndpoint("localhost", "tcp", "tcp://127.0.0.1:" + server.getLocalPort());
+      // the distance does not wait for the probe
+      ZMQEndpoint unreachable = new ZMQEndpoint("remote", "tcp", "tcp://10.255.255.1:1");
+      long start = System.nanoTime();
+      assertEquals(1.f, metrics.distance(unreachable, "localhost"));
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(
+          MeasuredLatencyMetrics.DEFAULT_PROBE_TIMEOUT / 2));
+      metrics.distance(probed, "localhost");
+      for (int i = 0; i < 100 && metrics.getLatency(probed) < 0; i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(metrics.getLatency(probed) >= 0);
+      assertTrue(metrics.probe(probed) >= 0);
+      assertEquals(-1, metrics.probe(ipc));
+    } finally {
+      server.close();
+    }
+
+    // the replies include the computation time and are not mixed with the probes
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("measured.ipc")));
+    TestServer slave = new TestServer(endpoint);
+    Thread t = new Thread(slave);
+    t.start();
+    connectTo(endpoint);
+    VelesManager manager = VelesManager.instance();
+    EndpointMetrics previous = manager.getEndpointMetrics();
+    manager.setEndpointMetrics(metrics);
+    try {
+      validateTestObject(manager.execute(getTestObject(), Compression.None));
+      assertEquals(-1, metrics.getLatency(endpoint));
+    } finally {
+      manager.setEndpointMetrics(previous);
+    }
+    t.join();
+    slave.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  public void testExecuteSharded() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    ZMQEndpoint a =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("shard-a.ipc")));
+    ZMQEndpoint b =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("shard-b.ipc")));
+    // 10 items in shards of 3 make 4 shards, 2 per slave
+    TestServer serverA = new TestServer(a, 2);
+    TestServer serverB = new TestServer(b, 2);
+    Thread threadA = new Thread(serverA);
+    Thread threadB = new Thread(serverB);
+    threadA.start();
+    threadB.start();
+    connectTo(a, b);
+    List<Object> items = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      items.add("item" + i);
+    }
+    final Map<Integer, Object> partial =
+        Collections.synchronizedMap(new TreeMap<Integer, Object>());
+    // the servers echo, so each shard result is the shard itself
+    List<Object> results =
+        VelesManager.instance().executeSharded(items, 3, Compression.None,
+            new BiConsumer<Integer, Object>() {
+              @Override
+              public void accept(Integer offset, Object result) {
+                partial.put(offset, result);
+              }
+            });
+    assertEquals(items, results);
+    threadA.join();
+    threadB.join();
+    for (int i = 0; i < 50 && partial.size() < 4; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(Arrays.asList(0, 3, 6, 9), new ArrayList<>(partial.keySet()));
+    assertEquals(Arrays.asList("item9"), partial.get(9));
+    // the arrays are expanded too, the primitive ones included
+    results.clear();
+    VelesManager.expand(new float[] {1, 2}, results);
+    VelesManager.expand(new double[] {3}, results);
+    VelesManager.expand(new Object[] {"a"}, results);
+    VelesManager.expand("b", results);
+    assertEquals(Arrays.<Object>asList(1f, 2f, 3d, "a", "b"), results);
+    serverA.dispose();
+    serverB.dispose();
+    new File(a.uri.substring(6)).delete();
+    new File(b.uri.substring(6)).delete();
+  }
+
+  public void testResultCache() throws IOException, InterruptedException, ExecutionException,
+      NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException,
+      NoSuchMethodException, InvocationTargetException, UnsupportedObjectException,
+      NoSlavesExistException {
+    ByteBuffer a = ResultCache.key("workflow", new byte[] {1, 2, 3});
+    assertEquals(a, ResultCache.key("workflow", new byte[] {1, 2, 3}));
+    assertFalse(a.equals(ResultCache.key("other", new byte[] {1, 2, 3})));
+    ByteBuffer b = ResultCache.key("workflow", new byte[] {4});
+    ByteBuffer c = ResultCache.key("workflow", new byte[] {5});
+    String value = "0123456789";
+    byte[] reply = getReply(value);
+    int size = reply.length;
+
+    ResultCache cache = new ResultCache(size * 2, 0);
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    assertFalse(cache.load(a, future));
+    cache.store(a, reply);
+    cache.store(b, reply);
+    assertTrue(cache.load(a, future));
+    assertEquals(value, future.get());
+    // b is the least recently used one
+    cache.store(c, reply);
+    assertEquals(2, cache.getCount());
+    assertEquals(size * 2, cache.getSize());
+    assertEquals(1, cache.getEvictions());
+    assertFalse(cache.load(b, new CompletableFuture<Object>()));
+    assertTrue(cache.load(c, new CompletableFuture<Object>()));
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+
+    cache = new ResultCache(size * 2, 50);
+    cache.store(a, reply);
+    assertTrue(cache.load(a, new CompletableFuture<Object>()));
+    Thread.sleep(100);
+    assertFalse(cache.load(a, new CompletableFuture<Object>()));
+    assertEquals(0, cache.getSize());
+
+    // the reply which breaks the unpickler with ClassCastException still completes the job
+    ZMQFakeOutputStream fake_out = new ZMQFakeOutputStream();
+    OutputStream out = VelesManager.getCompressedStream(fake_out, Compression.Snappy,
+        UUID.randomUUID().toString(), Collections.<ByteBuffer>emptyList());
+    out.write("I1\nI2\nR.".getBytes());
+    out.close();
+    cache.store(a, fake_out.toByteArray());
+    future = new CompletableFuture<>();
+    assertTrue(cache.load(a, future));
+    assertTrue(future.isCompletedExceptionally());
+
+    // only the first of the identical jobs reaches the slave
+    ZMQEndpoint endpoint =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("cache.ipc")));
+    TestServer server = new TestServer(endpoint, 2);
+    Thread thread = new Thread(server);
+    thread.start();
+    connectTo(endpoint);
+    VelesManager manager = VelesManager.instance();
+    Field field = VelesManager.class.getDeclaredField("_completed");
+    field.setAccessible(true);
+    Collection<?> completed = (Collection<?>) field.get(manager);
+    completed.clear();
+    cache = new ResultCache(1 << 20, 0);
+    manager.setResultCache(cache);
+    try {
+      // the reply is cached before the job is completed
+      validateTestObject(manager.yield(manager.submit(getTestObject(), Compression.None), 5,
+          TimeUnit.SECONDS));
+      assertEquals(1, cache.getCount());
+      for (int i = 0; i < 3; i++) {
+        validateTestObject(manager.yield(manager.submit(getTestObject(), Compression.None), 5,
+            TimeUnit.SECONDS));
+      }
+      assertEquals(3, cache.getHits());
+      assertEquals(1, cache.getMisses());
+      // the hits are yield()-ed like the rest
+      assertNull(manager.poll(0, TimeUnit.MILLISECONDS));
+      Object other = manager.executeSharded(Arrays.asList("a", "b"), 2, Compression.None);
+      assertEquals(Arrays.asList("a", "b"), other);
+      assertEquals(2, cache.getMisses());
+    } finally {
+      manager.setResultCache(null);
+    }
+    thread.join();
+    server.dispose();
+    new File(endpoint.uri.substring(6)).delete();
+  }
+
+  /**
+   * @return The reply message as a slave would send it.
+   */
+  private byte[] getReply(Object result) throws IOException {
+    ZMQFakeOutputStream fake_out = new ZMQFakeOutputStream();
+    OutputStream out = VelesManager.getCompressedStream(fake_out, Compression.Snappy,
+        UUID.randomUUID().toString(), Collections.<ByteBuffer>emptyList(), null, false, false);
+    new Pickler().dump(result, out);
+    out.close();
+    return fake_out.toByteArray();
+  }
+
+  public void testConsistentHashRing() {
+    List<ZMQEndpoint> endpoints = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      endpoints.add(new ZMQEndpoint("127.0.0.1", "tcp", "tcp://127.0.0.1:" + (40000 + i)));
+    }
+    final int keys = 10000;
+    ConsistentHashRing ring = new ConsistentHashRing(endpoints.subList(0, 4));
+    assertNull(new ConsistentHashRing(endpoints.subList(0, 0)).get("key"));
+    Map<ZMQEndpoint, Integer> hits = new HashMap<>();
+    for (int i = 0; i < keys; i++) {
+      ZMQEndpoint endpoint = ring.get("key" + i);
+      assertSame(endpoint, ring.get("key" + i));
+      Integer count = hits.get(endpoint);
+      hits.put(endpoint, count != null ? count + 1 : 1);
+    }
+    for (int i = 0; i < 4; i++) {
+      int count = hits.get(endpoints.get(i));
+      assertTrue(String.valueOf(count), count > keys / 4 * 0.7 && count < keys / 4 * 1.3);
+    }
+
+    // only the keys of the removed slave move
+    ConsistentHashRing shrunk = new ConsistentHashRing(endpoints.subList(1, 4));
+    ConsistentHashRing grown = new ConsistentHashRing(endpoints);
+    int moved = 0;
+    for (int i = 0; i < keys; i++) {
+      ZMQEndpoint before = ring.get("key" + i);
+      if (!before.equals(endpoints.get(0))) {
+        assertEquals(before, shrunk.get("key" + i));
+      }
+      ZMQEndpoint after = grown.get("key" + i);
+      if (!after.equals(before)) {
+        // and the added slave takes its share from all the others
+        assertEquals(endpoints.get(4), after);
+        moved++;
+      }
+    }
+    assertTrue(String.valueOf(moved), moved > keys / 5 * 0.7 && moved < keys / 5 * 1.3);
+  }
+
+  public void testRoutingKeys() throws IOException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
+      InvocationTargetException, InterruptedException, UnsupportedObjectException,
+      NoSlavesExistException {
+    ZMQEndpoint a =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("route-a.ipc")));
+    ZMQEndpoint b =
+        new ZMQEndpoint("localhost", "ipc", "ipc://".concat(getUniqueFileName("route-b.ipc")));
+    ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(a, b));
+    String keyA = null, keyB = null;
+    for (int i = 0; keyA == null || keyB == null; i++) {
+      String key = "key" + i;
+      if (ring.get(key).equals(a)) {
+        keyA = key;
+      } else {
+        keyB = key;
+      }
+    }
+    final int jobs = 6;
+    TestServer serverA = new TestServer(a, jobs);
+    TestServer serverB = new TestServer(b, jobs);
+    Thread threadA = new Thread(serverA);
+    Thread threadB = new Thread(serverB);
+    threadA.start();
+    threadB.start();
+    connectTo(a, b);
+    VelesManager manager = VelesManager.instance();
+    List<String> ids = new ArrayList<>();
+    // without the keys, the balancer would split the jobs evenly
+    for (int i = 0; i < jobs; i++) {
+      ids.add(manager.submit(getTestObject(), Compression.None, i < jobs / 2 ? keyA : keyB));
+    }
+    for (int i = 0; i < jobs; i++) {
+      ids.add(manager.submit(getTestObject(), Compression.None, i < jobs / 2 ? keyB : keyA));
+    }
+    for (String id : ids) {
+      validateTestObject(manager.yield(id, 5, TimeUnit.SECONDS));
+    }
+    threadA.join();
+    threadB.join();
+    serverA.dispose();
+    serverB.dispose();
+    new File(a.uri.substring(6)).delete();
+    new File(b.uri.substring(6)).delete();
+  }
+
+  public void testLoadBalancers() {
+    ZMQ.Context context = ZMQ.context(1);
+    List<ZMQConnection> connections = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      connections.add(new ZMQConnection(context, new ZMQEndpoint("localhost", "tcp",
+          "tcp://127.0.0.1:" + (40000 + i))));
+    }
+
+    LoadBalancer balancer = new RoundRobinBalancer();
+    int[] hits = new int[connections.size()];
+    for (int i = 0; i < 30; i++) {
+      hits[connections.indexOf(balancer.choose(connections))]++;
+    }
+    assertTrue(Arrays.equals(new int[] {10, 10, 10}, hits));
+
+    balancer = new LeastOutstandingBalancer();
+    connections.get(0).acquire();
+    connections.get(2).acquire();
+    connections.get(2).acquire();
+    for (int i = 0; i < 5; i++) {
+      assertSame(connections.get(1), balancer.choose(connections));
+    }
+    connections.get(1).acquire();
+    connections.get(1).acquire();
+    assertSame(connections.get(0), balancer.choose(connections));
+
+    WeightedBalancer weighted = new WeightedBalancer();
+    weighted.setWeight(connections.get(0).endpoint, 3);
+    weighted.setWeight(connections.get(2).endpoint, 2);
+    hits = new int[connections.size()];
+    for (int i = 0; i < 60; i++) {
+      hits[connections.indexOf(weighted.choose(connections))]++;
+    }
+    assertTrue(Arrays.equals(new int[] {30, 10, 20}, hits));
+    // the slaves with full windows keep their credit
+    hits = new int[connections.size()];
+    for (int i = 0; i < 60; i++) {
+      hits[connections.indexOf(weighted.choose(connections))]++;
+      assertSame(connections.get(1), weighted.choose(connections.subList(1, 2)));
+    }
+    assertTrue(Arrays.equals(new int[] {30, 10, 20}, hits));
+
+    // outstanding: 1, 2, 2
+    balancer = new LeastLatencyBalancer();
+    connections.get(0).getHealth().onSuccess(300);
+    connections.get(1).getHealth().onSuccess(100);
+    // the unmeasured one counts as average: it is sampled only when it is the least loaded
+    assertSame(connections.get(1), balancer.choose(connections));
+    connections.get(2).release();
+    connections.get(2).release();
+    assertSame(connections.get(2), balancer.choose(connections));
+    connections.get(2).acquire();
+    connections.get(2).acquire();
+    connections.get(2).getHealth().onSuccess(400);
+    for (int i = 0; i < 5; i++) {
+      assertSame(connections.get(1), balancer.choose(connections));
+    }
+
+    for (ZMQConnection connection : connections) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Stand-in for the Veles master which reports the specified slaves.
+   */
+  public class FakeMaster implements Runnable {
+    private final ServerSocket _socket;
+    private volatile String _response;
+
+    public FakeMaster() throws IOException {
+      _socket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public int getPort() {
+      return _socket.getLocalPort();
+    }
+
+    /**
+     * Sets the slaves to report. Each slave listens on the corresponding tcp port on 127.0.0.1.
+     */
+    public void setSlaves(int... ports) {
+      int[] powers = new int[ports.length];
+      Arrays.fill(powers, 100);
+      setSlaves(ports, powers);
+    }
+
+    /**
+     * Sets the slaves to report together with their computing power.
+     */
+    public void setSlaves(int[] ports, int[] powers) {
+      StringBuilder json = new StringBuilder("{");
+      for (int i = 0; i < ports.length; i++) {
+        if (i > 0) {
+          json.append(", ");
+        }
+        json.append(String.format("\"slave-%d\": {\"host\": \"127.0.0.1\", \"power\": %d, "
+            + "\"data\": [null, {\"ZmqLoaderEndpoints\": {\"tcp\": [\"connect\", "
+            + "\"tcp://*:%d\"]}}]}", ports[i], powers[i], ports[i]));
+      }
+      _response = json.append("}\r\n").toString();
+    }
+
+    public void dispose() throws IOException {
+      _socket.close();
+    }
+
+    @Override
+    public void run() {
+      while (!_socket.isClosed()) {
+        try (Socket client = _socket.accept()) {
+          BufferedReader reader =
+              new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+          JSONObject query = JSON.parseObject(reader.readLine());
+          assertEquals("nodes", query.getString("query"));
+          client.getOutputStream().write(_response.getBytes("UTF-8"));
+        } catch (IOException e) {
+          // the socket is closed
+        }
+      }
+    }
+  }
+
+  private static int getFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  public void testBackgroundRefresh() throws IOException, NoSlavesExistException,
+      InterruptedException, UnsupportedObjectException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException {
+    int[] ports = new int[] {getFreePort(), getFreePort()};
+    FakeMaster master = new FakeMaster();
+    master.setSlaves(ports[0]);
+    Thread t = new Thread(master);
+    t.start();
+
+    VelesManager manager = VelesManager.instance();
+    manager.connect("127.0.0.1", master.getPort(), "test");
+    Field field = VelesManager.class.getDeclaredField("_currentEndpoints");
+    field.setAccessible(true);
+    ZMQEndpoint first = new ZMQEndpoint("127.0.0.1", "tcp", "tcp://127.0.0.1:" + ports[0]);
+    assertEquals(Arrays.asList(first), field.get(manager));
+
+    master.setSlaves(ports[1]);
+    manager.setRefreshPeriod(20);
+    ZMQEndpoint second = new ZMQEndpoint("127.0.0.1", "tcp", "tcp://127.0.0.1:" + ports[1]);
+    for (int i = 0; i < 250 && !Arrays.asList(second).equals(field.get(manager)); i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(Arrays.asList(second), field.get(manager));
+
+    // submissions must not depend on the master being available
+    master.dispose();
+    t.join();
+    TestServer server = new TestServer(second);
+    t = new Thread(server);
+    t.start();
+    validateTestObject(manager.execute(getTestObject()));
+    t.join();
+    server.dispose();
+
+    disconnect(manager);
+  }
+
+  /**
+   * Stops the background refresh, so that the manager forgets the disposed master.
+   */
+  private static void disconnect(VelesManager manager) throws NoSuchFieldException,
+      SecurityException, IllegalArgumentException, IllegalAccessException {
+    Field field = VelesManager.class.getDeclaredField("_periodicRefresh");
+    field.setAccessible(true);
+    ((ScheduledFuture<?>) field.get(manager)).cancel(false);
+    field.set(manager, null);
+    field = VelesManager.class.getDeclaredField("_host");
+    field.setAccessible(true);
+    field.set(manager, null);
+  }
+
+  public void testCapacityWeighting() throws IOException, NoSlavesExistException,
+      InterruptedException, UnsupportedObjectException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException {
+    int[] ports = new int[] {getFreePort(), getFreePort()};
+    FakeMaster master = new FakeMaster();
+    master.setSlaves(ports, new int[] {300, 100});
+    Thread t = new Thread(master);
+    t.start();
+    ZMQEndpoint gpu = new ZMQEndpoint("127.0.0.1", "tcp", "tcp://127.0.0.1:" + ports[0]);
+    ZMQEndpoint cpu = new ZMQEndpoint("127.0.0.1", "tcp", "tcp://127.0.0.1:" + ports[1]);
+    TestServer gpuServer = new TestServer(gpu, 30);
+    TestServer cpuServer = new TestServer(cpu, 10);
+    Thread gpuThread = new Thread(gpuServer);
+    Thread cpuThread = new Thread(cpuServer);
+    gpuThread.start();
+    cpuThread.start();
+
+    VelesManager manager = VelesManager.instance();
+    LoadBalancer balancer = manager.getLoadBalancer();
+    manager.connect("127.0.0.1", master.getPort(), "test");
+    try {
+      assertEquals(300, manager.getCapacity(gpu), 0);
+      assertEquals(100, manager.getCapacity(cpu), 0);
+      manager.setCapacityWeighted(true);
+      assertTrue(manager.isCapacityWeighted());
+      // the servers expect exactly 3:1 split
+      for (int i = 0; i < 40; i++) {
+        validateTestObject(manager.execute(getTestObject(), Compression.None));
+      }
+    } finally {
+      manager.setLoadBalancer(balancer);
+      disconnect(manager);
+    }
+    assertFalse(manager.isCapacityWeighted());
+    gpuThread.join();
+    cpuThread.join();
+    gpuServer.dispose();
+    cpuServer.dispose();
+    master.dispose();
+    t.join();
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testEndpointsDiff() throws NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException, InterruptedException, ExecutionException {
+    ZMQ.Context context = ZMQ.context(1);
+    ZMQReactor reactor = new ZMQReactor(context);
+    reactor.start();
+    Field active = ZMQReactor.class.getDeclaredField("_active");
+    active.setAccessible(true);
+    Field all = ZMQReactor.class.getDeclaredField("_connections");
+    all.setAccessible(true);
+    ZMQEndpoint a = new ZMQEndpoint("127.0.0.1", "tcp", "tcp://127.0.0.1:40001");
+    ZMQEndpoint b = new ZMQEndpoint("127.0.0.1", "tcp", "tcp://127.0.0.1:40002");
+    ZMQEndpoint c = new ZMQEndpoint("127.0.0.1", "tcp", "tcp://127.0.0.1:40003");
+
+    reactor.setEndpoints(Arrays.asList(a, b)).get();
+    List<ZMQConnection> before = new ArrayList<>((List<ZMQConnection>) active.get(reactor));
+    assertEquals(2, before.size());
+    reactor.setEndpoints(Arrays.asList(b, c)).get();
+    List<ZMQConnection> after = new ArrayList<>((List<ZMQConnection>) active.get(reactor));
+    assertEquals(2, after.size());
+    assertSame(before.get(1), after.get(0));
+    assertEquals(c, after.get(1).endpoint);
+    // a had no outstanding jobs and must be closed at once
+    assertEquals(after, all.get(reactor));
+
+    reactor.stop();
+    context.term();
+  }
+
+  public void testReactorFailure() throws InterruptedException, ExecutionException,
+      TimeoutException {
+    ZMQ.Context context = ZMQ.context(1);
+    ZMQReactor reactor = new ZMQReactor(context);
+    reactor.start();
+    final IllegalStateException failure = new IllegalStateException("broken balancer");
+    reactor.setBalancer(new LoadBalancer() {
+      @Override
+      public ZMQConnection choose(List<ZMQConnection> connections) {
+        throw failure;
+      }
+    });
+    reactor.setEndpoints(Arrays.asList(
+        new ZMQEndpoint("127.0.0.1", "tcp", "tcp://127.0.0.1:40001"))).get();
+    // the reactor thread dies, but the jobs still complete
+    CompletableFuture<Object> future = reactor.submit(new ZMQReactor.Outgoing(1,
+        VelesManager.encodeId(1, true), MessageBuffer.POOL.acquire(),
+        Collections.<ByteBuffer>emptyList(), Compression.None, null, false, null));
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("The job did not fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertSame(failure, e.getCause().getCause());
+    }
+    future = reactor.submit(new ZMQReactor.Outgoing(2, VelesManager.encodeId(2, true),
+        MessageBuffer.POOL.acquire(), Collections.<ByteBuffer>emptyList(), Compression.None,
+        null, false, null));
+    assertTrue(future.isCompletedExceptionally());
+    reactor.stop();
+    context.term();
+  }
 }